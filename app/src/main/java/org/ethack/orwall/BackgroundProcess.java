@@ -2,9 +2,19 @@ package org.ethack.orwall;
 
 import android.app.IntentService;
 import android.content.Intent;
+import android.os.SystemClock;
 
+import org.ethack.orwall.lib.BootTimeline;
 import org.ethack.orwall.lib.Constants;
 import org.ethack.orwall.lib.Iptables;
+import org.ethack.orwall.lib.PackageReconciler;
+import org.ethack.orwall.lib.Preferences;
+import org.ethack.orwall.lib.Profiles;
+import org.ethack.orwall.lib.RuleExecutor;
+import org.ethack.orwall.lib.RuleOrderOptimizer;
+import org.ethack.orwall.lib.RuleScheduler;
+import org.ethack.orwall.lib.StatusProbe;
+import org.ethack.orwall.lib.TorMonitor;
 import org.ethack.orwall.lib.Util;
 import org.sufficientlysecure.rootcommands.util.Log;
 
@@ -20,8 +30,18 @@ public class BackgroundProcess extends IntentService {
     }
 
     @Override
-    protected void onHandleIntent(Intent workIntent) {
-        this.iptables = new Iptables(this);
+    protected void onHandleIntent(final Intent workIntent) {
+        // through the single rule writer; waiting keeps this service alive until it's applied
+        RuleExecutor.await(this, new RuleExecutor.Task() {
+            @Override
+            public void run(Iptables iptables) {
+                handle(iptables, workIntent);
+            }
+        });
+    }
+
+    private void handle(Iptables iptables, Intent workIntent) {
+        this.iptables = iptables;
 
         String action = workIntent.getStringExtra(Constants.ACTION);
 
@@ -47,11 +67,63 @@ public class BackgroundProcess extends IntentService {
                 rmRule(appUID, appName, onionType, localHost, localNetwork);
 
             } else if (action.equals(Constants.ACTION_DISABLE_ORWALL)) {
-                iptables.deactivate();
-                iptables.deactivateV6();
-                
+                iptables.stop();
+                StatusProbe.invalidate();
+
+            } else if (action.equals(Constants.ACTION_PAUSE_ORWALL)) {
+                iptables.pause();
+                StatusProbe.invalidate();
+
             } else if (action.equals(Constants.ACTION_ENABLE_ORWALL)) {
-                iptables.boot();
+                iptables.resume();
+                StatusProbe.invalidate();
+
+            } else if (action.equals(Constants.ACTION_RELOAD_ORWALL)) {
+                iptables.reapply();
+                StatusProbe.invalidate();
+                Iptables.updateInitScript(this, iptables);
+
+            } else if (action.equals(Constants.ACTION_CHECK_TOR)) {
+                if (Preferences.isOrwallEnabled(this)) {
+                    TorMonitor.check(this, iptables);
+                }
+
+            } else if (action.equals(Constants.ACTION_REFRESH_TOR)) {
+                if (Preferences.isOrwallEnabled(this)) {
+                    iptables.refreshTorChains();
+                    Iptables.updateInitScript(this, iptables);
+                    if (Preferences.isDNSCacheEnabled(this)) {
+                        // the forwarder relays to DNSPort, which may have moved
+                        startService(new Intent(this, DnsForwarder.class));
+                    }
+                }
+
+            } else if (action.equals(Constants.ACTION_RUN_SCHEDULE)) {
+                RuleScheduler.run(this, iptables);
+
+            } else if (action.equals(Constants.ACTION_RECONCILE_PACKAGES)) {
+                PackageReconciler.run(this, iptables);
+
+            } else if (action.equals(Constants.ACTION_SAVE_PROFILE)) {
+                new Profiles(this).save(workIntent.getStringExtra(Constants.PARAM_PROFILE), iptables);
+
+            } else if (action.equals(Constants.ACTION_APPLY_PROFILE)) {
+                new Profiles(this).apply(workIntent.getStringExtra(Constants.PARAM_PROFILE), iptables);
+                Iptables.updateInitScript(this, iptables);
+
+            } else if (action.equals(Constants.ACTION_BOOT)) {
+                boot(workIntent.getLongExtra(Constants.PARAM_BOOT_RECEIVED, SystemClock.elapsedRealtime()));
+
+            } else if (action.equals(Constants.ACTION_BOOT_DONE)) {
+                BootTimeline.end(this);
+
+            } else if (action.equals(Constants.ACTION_UPDATE_INIT_SCRIPT)) {
+                Iptables.updateInitScript(this, iptables);
+
+            } else if (action.equals(Constants.ACTION_OPTIMIZE_RULES)) {
+                if (Preferences.isOrwallEnabled(this)) {
+                    RuleOrderOptimizer.run(iptables);
+                }
             } else {
                 Log.e("BackgroundProcess", "Just got an unknown action!");
             }
@@ -60,42 +132,41 @@ public class BackgroundProcess extends IntentService {
         }
     }
 
+    /**
+     * Device just started: apply boot-up rules in order to enable traffic for orbot and other things.
+     * @param received elapsed realtime the boot broadcast was received at
+     */
+    private void boot(long received) {
+        BootTimeline.begin(iptables.popBootMarks(), received);
+
+        // Enforce init-script if sharedpreference says it
+        // We want to do it the earlier.
+        // Also, we want to get a fresh status regarding the init-script support: this can be
+        // a reboot after a ROM upgrade or change.
+        if (Iptables.initSupported() && Preferences.isEnforceInitScript(this)) {
+            Iptables.installInitScript(this, iptables);
+        }
+
+        // a paused orWall boots too, and gets its bypass rules back
+        if (Preferences.isOrwallEnabled(this) || Preferences.isOrwallPaused(this)) {
+            iptables.boot();
+        } else {
+            BootTimeline.end(this);
+        }
+        // apps removed while we weren't running
+        PackageReconciler.schedule(this);
+    }
+
     private void managePortal(boolean activate) {
         Util.enableCaptiveDetection(activate, this);
     }
 
     private void addRule(Long appUID, String appName, String onionType, Boolean localHost, Boolean localNetwork) {
-
-        if (onionType.equals(Constants.DB_ONION_TYPE_TOR)) {
-            iptables.natApp(this, appUID, 'A', appName);
-        } else
-        if (onionType.equals(Constants.DB_ONION_TYPE_BYPASS)) {
-            iptables.bypass(appUID, appName, true);
-        }
-
-        if (localHost) {
-            iptables.localHost(appUID, appName, true);
-        }
-
-        if (localNetwork) {
-            iptables.localNetwork(appUID, appName, true);
-        }
+        iptables.appRule(true, appUID, appName, onionType, localHost, localNetwork);
+        BootTimeline.markRule();
     }
 
     private void rmRule(Long appUID, String appName, String onionType, Boolean localHost, Boolean localNetwork) {
-        if (onionType.equals(Constants.DB_ONION_TYPE_TOR)) {
-            iptables.natApp(this, appUID, 'D', appName);
-        } else
-        if (onionType.equals(Constants.DB_ONION_TYPE_BYPASS)) {
-            iptables.bypass(appUID, appName, false);
-        }
-
-        if (localHost) {
-            iptables.localHost(appUID, appName, false);
-        }
-
-        if (localNetwork) {
-            iptables.localNetwork(appUID, appName, false);
-        }
+        iptables.appRule(false, appUID, appName, onionType, localHost, localNetwork);
     }
 }
@@ -3,9 +3,9 @@ package org.ethack.orwall;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 
-import org.ethack.orwall.lib.Iptables;
-import org.ethack.orwall.lib.Preferences;
+import org.ethack.orwall.lib.Constants;
 
 /**
  * Do think at startup.
@@ -17,20 +17,12 @@ public class BootBroadcast extends BroadcastReceiver {
 
     @Override
     public void onReceive(final Context context, final Intent intent) {
-        Iptables iptables = new Iptables(context);
-
-        // Enforce init-script if sharedpreference says it
-        // We want to do it the earlier.
-        // Also, we want to get a fresh status regarding the init-script support: this can be
-        // a reboot after a ROM upgrade or change.
-        boolean enforceInit = Preferences.isEnforceInitScript(context);
-        if (Iptables.initSupported() && enforceInit) {
-            Iptables.installInitScript(context);
-        }
-        // Apply boot-up rules in order to enable traffic for orbot and other things.
-
-        if (Preferences.isOrwallEnabled(context)){
-            iptables.boot();
-        }
+        // boot may take longer than a receiver is allowed to: let the service do it,
+        // it goes through the rule writer like any other change
+        Intent bg = new Intent(context, BackgroundProcess.class);
+        bg.putExtra(Constants.ACTION, Constants.ACTION_BOOT);
+        // the service gets it later, after the rule writer queue
+        bg.putExtra(Constants.PARAM_BOOT_RECEIVED, SystemClock.elapsedRealtime());
+        context.startService(bg);
     }
 }
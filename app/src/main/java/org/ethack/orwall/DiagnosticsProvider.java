@@ -0,0 +1,82 @@
+package org.ethack.orwall;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import org.ethack.orwall.lib.Diagnostics;
+import org.ethack.orwall.lib.RuleAnnotations;
+import org.sufficientlysecure.rootcommands.util.CommandTrace;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Read-only view of Diagnostics.snapshot(), restricted to holders of the DUMP permission (adb shell):
+ * <p/>
+ * adb shell content query --uri content://org.ethack.orwall.diagnostics
+ * adb shell dumpsys activity provider org.ethack.orwall/.DiagnosticsProvider
+ * <p/>
+ * The dumpsys variant also prints rule comments kept out of the kernel, and recent shell commands.
+ */
+public class DiagnosticsProvider extends ContentProvider {
+    public final static String AUTHORITY = "org.ethack.orwall.diagnostics";
+    private final static String[] COLUMNS = {"key", "value"};
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (Map.Entry<String, String> entry : Diagnostics.snapshot(getContext()).entrySet()) {
+            cursor.addRow(new Object[]{entry.getKey(), entry.getValue()});
+        }
+        return cursor;
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        for (Map.Entry<String, String> entry : Diagnostics.snapshot(getContext()).entrySet()) {
+            writer.println(entry.getKey() + "=" + entry.getValue());
+        }
+        Map<String, String> annotations = RuleAnnotations.get();
+        if (!annotations.isEmpty()) {
+            writer.println();
+            writer.println("Rule comments (side table):");
+            for (Map.Entry<String, String> entry : annotations.entrySet()) {
+                writer.println("  " + entry.getKey() + "  # " + entry.getValue());
+            }
+        }
+        writer.println();
+        writer.println("Recent shell commands:");
+        for (String line : CommandTrace.dump()) {
+            writer.println("  " + line);
+        }
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return "vnd.android.cursor.dir/vnd." + AUTHORITY;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Diagnostics are read-only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Diagnostics are read-only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Diagnostics are read-only");
+    }
+}
@@ -0,0 +1,318 @@
+package org.ethack.orwall;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.ethack.orwall.lib.DnsCache;
+import org.ethack.orwall.lib.Preferences;
+import org.ethack.orwall.lib.TorMonitor;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Local caching DNS forwarder, sitting between the REDIRECT target and Orbot DNSPort.
+ * <p/>
+ * Queries are answered from DnsCache when possible. Otherwise they are relayed to Orbot,
+ * and identical queries arriving while one is in flight wait for the same answer.
+ * Starting the service again while it runs picks up a new Orbot DNSPort.
+ */
+public class DnsForwarder extends Service {
+    private final static String TAG = "DnsForwarder";
+    private final static String LOCALHOST = "127.0.0.1";
+
+    private final static int MAX_ENTRIES = 1024;
+    private final static int MAX_PACKET = 4096;
+    private final static int UPSTREAM_TIMEOUT = 10000;
+    private final static int SWEEP_INTERVAL = 1000;
+
+    private final static DnsCache cache = new DnsCache(MAX_ENTRIES);
+
+    private volatile boolean running = false;
+    private DatagramSocket server;
+    private volatile DatagramSocket upstream;
+    // Orbot DNSPort as configured, and the one upstream is connected to (server thread only)
+    private volatile int dnsPort;
+    private int upstreamPort = -1;
+
+    private final Object lock = new Object();
+    private final Map<String, Pending> pendingByKey = new HashMap<>();
+    private final Map<Integer, Pending> pendingById = new HashMap<>();
+    private final Random random = new Random();
+
+    /**
+     * A query relayed to Orbot, and every client waiting for its answer.
+     */
+    private static class Pending {
+        final String key;
+        final int upstreamId;
+        final long sent;
+        final List<Client> clients = new ArrayList<>();
+
+        Pending(String key, int upstreamId) {
+            this.key = key;
+            this.upstreamId = upstreamId;
+            this.sent = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private static class Client {
+        final InetAddress address;
+        final int port;
+        final int id;
+
+        Client(InetAddress address, int port, int id) {
+            this.address = address;
+            this.port = port;
+            this.id = id;
+        }
+    }
+
+    public static DnsCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // proxy ports may have changed: the server thread reconnects upstream if needed
+        dnsPort = Integer.valueOf(Preferences.getDNSPort(this));
+        if (!running) {
+            running = true;
+            new Thread(serverRunnable, "DNS server").start();
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        running = false;
+        if (server != null) server.close();
+        if (upstream != null) upstream.close();
+        cache.clear();
+        super.onDestroy();
+    }
+
+    private Runnable serverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int port = Integer.valueOf(Preferences.getDNSCachePort(DnsForwarder.this));
+            try {
+                server = new DatagramSocket(null);
+                server.setReuseAddress(true);
+                server.bind(new InetSocketAddress(LOCALHOST, port));
+                server.setSoTimeout(1000);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open socket: " + e.getMessage());
+                running = false;
+                stopSelf();
+                return;
+            }
+            if (!connectUpstream()) {
+                server.close();
+                running = false;
+                stopSelf();
+                return;
+            }
+            Log.d(TAG, "Listening on 127.0.0.1:" + port);
+
+            byte[] buffer = new byte[MAX_PACKET];
+            long lastSweep = SystemClock.elapsedRealtime();
+            while (running) {
+                if (dnsPort != upstreamPort) {
+                    connectUpstream();
+                }
+                // on elapsed time: a busy server never gets to the receive timeout
+                long now = SystemClock.elapsedRealtime();
+                if (now - lastSweep >= SWEEP_INTERVAL) {
+                    lastSweep = now;
+                    expire();
+                }
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    server.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                } catch (IOException e) {
+                    if (running) Log.e(TAG, "Unable to read query: " + e.getMessage());
+                    break;
+                }
+                handleQuery(packet);
+            }
+        }
+    };
+
+    /**
+     * Open a socket to current Orbot DNSPort, and replace the previous one.
+     * Queries in flight on the previous socket are dropped, clients retry on their own.
+     *
+     * @return true if success
+     */
+    private boolean connectUpstream() {
+        int port = dnsPort;
+        upstreamPort = port;
+        DatagramSocket socket;
+        try {
+            socket = new DatagramSocket();
+            socket.connect(new InetSocketAddress(LOCALHOST, port));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open upstream socket: " + e.getMessage());
+            return false;
+        }
+        DatagramSocket previous = upstream;
+        upstream = socket;
+        if (previous != null) {
+            previous.close();
+            // their answers can't come back anymore: later queries must not wait for them
+            synchronized (lock) {
+                pendingByKey.clear();
+                pendingById.clear();
+            }
+        }
+        new Thread(new UpstreamReader(socket), "DNS upstream").start();
+        Log.d(TAG, "Forwarding to 127.0.0.1:" + port);
+        return true;
+    }
+
+    /**
+     * Reads answers on one upstream socket, until it gets replaced or the service stops
+     */
+    private class UpstreamReader implements Runnable {
+        private final DatagramSocket socket;
+
+        UpstreamReader(DatagramSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[MAX_PACKET];
+            while (running && socket == upstream) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                } catch (IOException e) {
+                    if (running && socket == upstream) Log.e(TAG, "Unable to read answer: " + e.getMessage());
+                    break;
+                }
+                handleAnswer(packet);
+            }
+        }
+    }
+
+    private void send(byte[] data, InetAddress address, int port) {
+        try {
+            server.send(new DatagramPacket(data, data.length, address, port));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to send answer: " + e.getMessage());
+        }
+    }
+
+    private void handleQuery(DatagramPacket packet) {
+        byte[] data = packet.getData();
+        int length = packet.getLength();
+        if (length < DnsCache.HEADER_SIZE) return;
+
+        int id = DnsCache.getId(data);
+        String key = DnsCache.getKey(data, length);
+        if (key != null) {
+            byte[] cached = cache.get(key, id);
+            if (cached != null) {
+                send(cached, packet.getAddress(), packet.getPort());
+                return;
+            }
+        }
+
+        Client client = new Client(packet.getAddress(), packet.getPort(), id);
+        byte[] query;
+        synchronized (lock) {
+            if (key != null) {
+                Pending inFlight = pendingByKey.get(key);
+                if (inFlight != null) {
+                    // same question already asked: wait for its answer
+                    inFlight.clients.add(client);
+                    return;
+                }
+            }
+            int upstreamId;
+            do {
+                upstreamId = random.nextInt(0x10000);
+            } while (pendingById.containsKey(upstreamId));
+
+            Pending pending = new Pending(key, upstreamId);
+            pending.clients.add(client);
+            pendingById.put(upstreamId, pending);
+            if (key != null) pendingByKey.put(key, pending);
+
+            query = Arrays.copyOf(data, length);
+            DnsCache.setId(query, upstreamId);
+        }
+
+        try {
+            upstream.send(new DatagramPacket(query, query.length));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to relay query: " + e.getMessage());
+        }
+    }
+
+    private void handleAnswer(DatagramPacket packet) {
+        int length = packet.getLength();
+        if (length < DnsCache.HEADER_SIZE) return;
+        byte[] answer = Arrays.copyOf(packet.getData(), length);
+
+        Pending pending;
+        synchronized (lock) {
+            pending = pendingById.remove(DnsCache.getId(answer));
+            if (pending == null) return;
+            if (pending.key != null) pendingByKey.remove(pending.key);
+        }
+
+        if (pending.key != null) cache.put(pending.key, answer);
+
+        for (Client client : pending.clients) {
+            DnsCache.setId(answer, client.id);
+            send(answer, client.address, client.port);
+        }
+    }
+
+    /**
+     * Forget queries Orbot never answered — clients will retry on their own.
+     * Unanswered queries hint that Tor went down: TorMonitor gets to check it.
+     */
+    private void expire() {
+        long limit = SystemClock.elapsedRealtime() - UPSTREAM_TIMEOUT;
+        boolean expired = false;
+        synchronized (lock) {
+            Iterator<Pending> iterator = pendingById.values().iterator();
+            while (iterator.hasNext()) {
+                Pending pending = iterator.next();
+                if (pending.sent < limit) {
+                    iterator.remove();
+                    if (pending.key != null) pendingByKey.remove(pending.key);
+                    expired = true;
+                }
+            }
+        }
+        if (expired) {
+            TorMonitor.request(getApplicationContext());
+        }
+    }
+}
@@ -10,8 +10,9 @@ import android.content.Intent;
 import android.util.Log;
 
 import org.ethack.orwall.lib.Iptables;
-import org.ethack.orwall.lib.NetworkHelper;
+import org.ethack.orwall.lib.NetworkSnapshot;
 import org.ethack.orwall.lib.Preferences;
+import org.ethack.orwall.lib.RuleExecutor;
 
 public class NetworkReceiver extends BroadcastReceiver {
     private static String TAG = "NetworkReceiver";
@@ -32,29 +33,45 @@ public class NetworkReceiver extends BroadcastReceiver {
 
         Log.d(TAG, "Got a Network Change event: " + action);
 
-        Iptables iptables = new Iptables(context);
-
-        if (action.equals(ACTION_TETHER_STATE_CHANGED)){
-            // try the faster way
-            Set<String> set = new HashSet<>(0);
-            ArrayList<String> active = intent.getStringArrayListExtra(EXTRA_ACTIVE_TETHER);
-            if (active != null){
-                for(String intf: active) set.add(intf);
-            } else {
-                // hum, try the old fashioned way
-                NetworkHelper.getTetheredInterfaces(context, set);
-            }
+        final Context appContext = context.getApplicationContext();
+        final boolean tether = action.equals(ACTION_TETHER_STATE_CHANGED);
+        final boolean lan = action.equals("android.net.wifi.WIFI_STATE_CHANGED") || action.equals("android.net.conn.CONNECTIVITY_CHANGE");
+        final ArrayList<String> active = (tether ? intent.getStringArrayListExtra(EXTRA_ACTIVE_TETHER) : null);
+        if (!tether && !lan) return;
 
-            Set<String> oldIntfs = Preferences.getTetherInterfaces(context);
+        // changes are applied by the rule writer, in order with all other ones
+        final PendingResult result = goAsync();
+        RuleExecutor.submit(context, new RuleExecutor.Task() {
+            @Override
+            public void run(Iptables iptables) {
+                if (tether) {
+                    // try the faster way
+                    NetworkSnapshot snapshot;
+                    if (active != null) {
+                        snapshot = NetworkSnapshot.refresh(appContext, new HashSet<>(active));
+                    } else {
+                        // hum, try the old fashioned way
+                        snapshot = NetworkSnapshot.refresh(appContext);
+                    }
 
-            if (!set.equals(oldIntfs))
-                iptables.tetherUpdate(context, oldIntfs, set);
-        }
-        else
-        if (action.equals("android.net.wifi.WIFI_STATE_CHANGED") || action.equals("android.net.conn.CONNECTIVITY_CHANGE")) {
-            Log.d(TAG, "Will do some LAN stuff");
+                    Set<String> set = new HashSet<>(snapshot.getTethered());
+                    Set<String> oldIntfs = Preferences.getTetherInterfaces(appContext);
 
-            iptables.LANPolicy();
-        }
+                    if (!set.equals(oldIntfs))
+                        iptables.tetherUpdate(appContext, oldIntfs, set);
+                } else {
+                    Log.d(TAG, "Will do some LAN stuff");
+
+                    NetworkSnapshot.refresh(appContext);
+
+                    iptables.LANPolicy();
+                }
+            }
+        }, new RuleExecutor.Callback() {
+            @Override
+            public void onDone() {
+                result.finish();
+            }
+        });
     }
 }
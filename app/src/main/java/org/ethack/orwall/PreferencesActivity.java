@@ -11,6 +11,8 @@ import android.preference.PreferenceManager;
 import org.ethack.orwall.lib.Constants;
 import org.ethack.orwall.lib.Iptables;
 import org.ethack.orwall.lib.Preferences;
+import org.ethack.orwall.lib.RuleExecutor;
+import org.ethack.orwall.lib.RuleOrderOptimizer;
 
 import java.util.Arrays;
 import java.util.List;
@@ -78,14 +80,52 @@ public class PreferencesActivity extends PreferenceActivity {
 
                 if (!sharedPreferences.getBoolean(Preferences.PREF_KEY_ORWALL_ENABLED, true)) return;
 
-                Iptables iptables = new Iptables(getActivity());
-
+                // the init-script must carry the new policy
+                final Context appContext = getActivity().getApplicationContext();
                 switch (s) {
                     case Preferences.PREF_KEY_ADB_ENABLED:
-                        iptables.enableADB(sharedPreferences.getBoolean(s, false));
+                        final boolean adb = sharedPreferences.getBoolean(s, false);
+                        RuleExecutor.submit(appContext, new RuleExecutor.Task() {
+                            @Override
+                            public void run(Iptables iptables) {
+                                iptables.enableADB(adb);
+                                Iptables.updateInitScript(appContext, iptables);
+                            }
+                        });
                         break;
                     case Preferences.PREF_KEY_SSH_ENABLED:
-                        iptables.enableSSH(sharedPreferences.getBoolean(s, false));
+                        final boolean ssh = sharedPreferences.getBoolean(s, false);
+                        RuleExecutor.submit(appContext, new RuleExecutor.Task() {
+                            @Override
+                            public void run(Iptables iptables) {
+                                iptables.enableSSH(ssh);
+                                Iptables.updateInitScript(appContext, iptables);
+                            }
+                        });
+                        break;
+                    case Preferences.PREF_KEY_REJECT_ENABLED:
+                        final boolean reject = sharedPreferences.getBoolean(s, true);
+                        RuleExecutor.submit(appContext, new RuleExecutor.Task() {
+                            @Override
+                            public void run(Iptables iptables) {
+                                iptables.rejectPolicy(reject);
+                                Iptables.updateInitScript(appContext, iptables);
+                            }
+                        });
+                        break;
+                    case Preferences.PREF_KEY_OPTIMIZE_ORDER:
+                        if (sharedPreferences.getBoolean(s, false)) {
+                            RuleOrderOptimizer.schedule(getActivity());
+                        } else {
+                            RuleOrderOptimizer.cancel(getActivity());
+                        }
+                        break;
+                    case Preferences.PREF_KEY_COMMENT_SIDE_TABLE:
+                        // installed rules must be deleted with the comments they were added with
+                        Context ctx = getActivity();
+                        Intent reload = new Intent(ctx, BackgroundProcess.class);
+                        reload.putExtra(Constants.ACTION, Constants.ACTION_RELOAD_ORWALL);
+                        ctx.startService(reload);
                         break;
                     case "enable_captive_portal":
                         Context context = getActivity();
@@ -119,11 +159,49 @@ public class PreferencesActivity extends PreferenceActivity {
     }
 
     public static class ProxyPorts extends PreferenceFragment {
+        private SharedPreferences.OnSharedPreferenceChangeListener listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String s) {
+
+                if (!sharedPreferences.getBoolean(Preferences.PREF_KEY_ORWALL_ENABLED, true)) return;
+
+                Context context = getActivity();
+                Intent bgpProcess = new Intent(context, BackgroundProcess.class);
+
+                switch (s) {
+                    case Preferences.PREF_TRANS_PORT:
+                    case Preferences.PREF_DNS_PORT:
+                        // only shared Tor chains know about ports
+                        bgpProcess.putExtra(Constants.ACTION, Constants.ACTION_REFRESH_TOR);
+                        context.startService(bgpProcess);
+                        break;
+                    case Preferences.PREF_KEY_DNS_CACHE_ENABLED:
+                    case Preferences.PREF_DNS_CACHE_PORT:
+                        // DNS redirections are changing: rebuild chains from scratch
+                        bgpProcess.putExtra(Constants.ACTION, Constants.ACTION_RELOAD_ORWALL);
+                        context.startService(bgpProcess);
+                        break;
+                }
+            }
+        };
+
         @Override
         public void onCreate(Bundle savedInstanceState) {
             super.onCreate(savedInstanceState);
             addPreferencesFromResource(R.xml.fragment_proxy_ports);
         }
+
+        @Override
+        public void onResume() {
+            super.onResume();
+            getPreferenceScreen().getSharedPreferences().registerOnSharedPreferenceChangeListener(listener);
+        }
+
+        @Override
+        public void onPause() {
+            super.onPause();
+            getPreferenceScreen().getSharedPreferences().unregisterOnSharedPreferenceChangeListener(listener);
+        }
     }
 
 }
@@ -11,7 +11,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 
 import org.ethack.orwall.adapter.TabsPagerAdapter;
-import org.ethack.orwall.lib.Iptables;
+import org.ethack.orwall.lib.Constants;
 import org.ethack.orwall.lib.NatRules;
 import org.ethack.orwall.lib.Preferences;
 import org.sufficientlysecure.rootcommands.util.Log;
@@ -32,7 +32,7 @@ public class TabbedMain extends FragmentActivity implements ActionBar.TabListene
     private TabsPagerAdapter mAdapter;
     private ActionBar actionBar;
     // TODO: use R content for tab names if needed.
-    private String[] tabs = {"Home", "Apps"/*, "Logs"*/};
+    private String[] tabs = {"Home", "Apps", "Connections"};
 
     @Override
     public void onTabReselected(Tab tab, FragmentTransaction ft) {
@@ -66,8 +66,10 @@ public class TabbedMain extends FragmentActivity implements ActionBar.TabListene
         // Is it the first application run?
         if (Preferences.isFirstRun(this)) {
             // Initialize orWall iptables rules - #72 should be better after that
-            Iptables iptables = new Iptables(this);
-            iptables.boot();
+            // Through the background queue: cold start must not wait on root
+            Intent bgpProcess = new Intent(this, BackgroundProcess.class);
+            bgpProcess.putExtra(Constants.ACTION, Constants.ACTION_RELOAD_ORWALL);
+            startService(bgpProcess);
             // Start Wizard
             Intent wizard = new Intent(this, WizardActivity.class);
             startActivity(wizard);
@@ -0,0 +1,36 @@
+package org.ethack.orwall;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import org.ethack.orwall.lib.Preferences;
+import org.ethack.orwall.lib.TorMonitor;
+
+/**
+ * Orbot broadcasts its status when Tor starts or stops: check Tor right away instead of
+ * waiting for the next periodic check.
+ */
+public class TorStatusReceiver extends BroadcastReceiver {
+    private static String TAG = "TorStatusReceiver";
+
+    public static final String ACTION_STATUS = "org.torproject.android.intent.action.STATUS";
+    public static final String EXTRA_STATUS = "org.torproject.android.intent.extra.STATUS";
+
+    public TorStatusReceiver() {
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!Preferences.isOrwallEnabled(context) || !ACTION_STATUS.equals(intent.getAction())) {
+            return;
+        }
+        String status = intent.getStringExtra(EXTRA_STATUS);
+        Log.d(TAG, "Orbot status: " + status);
+        // STARTING and STOPPING are followed by ON or OFF
+        if ("ON".equals(status) || "OFF".equals(status)) {
+            TorMonitor.request(context.getApplicationContext());
+        }
+    }
+}
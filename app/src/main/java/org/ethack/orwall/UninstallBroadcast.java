@@ -5,8 +5,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.util.Log;
-import org.ethack.orwall.lib.AppRule;
-import org.ethack.orwall.lib.NatRules;
+import org.ethack.orwall.lib.Constants;
+import org.ethack.orwall.lib.PackageReconciler;
 
 public class UninstallBroadcast extends BroadcastReceiver {
     private final static String TAG = "UninstallBroadcast";
@@ -25,23 +25,21 @@ public class UninstallBroadcast extends BroadcastReceiver {
 
         boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
 
-        if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction()) && !replacing) {
-            final long uid = intent.getIntExtra(Intent.EXTRA_UID, -123);
-            final String appName = intent.getData().getSchemeSpecificPart();
-            Log.d("UninstallBroadcast", "AppName: " + appName + ", AppUID: " + uid);
-
-            // is the app present in rules?
-            NatRules natRules = new NatRules(context);
-
-            AppRule rule = natRules.getAppRule(uid);
-            if (rule.isStored()) {
-
-                // First: remove rule from firewall if any
-                rule.uninstall(context);
-
-                // Second: remove app from NatRules if present
-                natRules.removeAppFromRules(uid);
+        if (Constants.ORBOT_APP_NAME.equals(data.getSchemeSpecificPart())) {
+            // Orbot UID may have changed: rewrite shared Tor chains
+            if (Intent.ACTION_PACKAGE_ADDED.equals(intent.getAction()) || !replacing) {
+                Log.d(TAG, "Orbot got (re)installed or removed");
+                Intent bgpProcess = new Intent(context, BackgroundProcess.class);
+                bgpProcess.putExtra(Constants.ACTION, Constants.ACTION_REFRESH_TOR);
+                context.startService(bgpProcess);
             }
+            return;
+        }
+
+        if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction()) && !replacing) {
+            Log.d(TAG, "Package removed: " + data.getSchemeSpecificPart());
+            // removals come in bursts: one reconcile pass handles all of them
+            PackageReconciler.schedule(context.getApplicationContext());
         }
     }
 }
@@ -23,11 +23,13 @@ import org.ethack.orwall.lib.Constants;
 import org.ethack.orwall.lib.NatRules;
 import org.ethack.orwall.lib.PackageInfoData;
 import org.ethack.orwall.lib.Preferences;
+import org.ethack.orwall.lib.RuleScheduler;
 import org.ethack.orwall.lib.Util;
 import org.sufficientlysecure.rootcommands.util.Log;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * New adapter class
@@ -190,6 +192,8 @@ public class AppListAdapter extends ArrayAdapter {
      */
     public void toggleApp(boolean checked, int position) {
         AppRule appRule = apps.get(position);
+        // a manual change wins over a pending revocation
+        RuleScheduler.cancel(context, RuleScheduler.TYPE_APP, appRule.getAppUID());
 
         if (checked) {
             if (Util.isOrbotInstalled(this.context))
@@ -203,7 +207,8 @@ public class AppListAdapter extends ArrayAdapter {
                 Toast.makeText(context, context.getString(R.string.toast_new_rule), Toast.LENGTH_SHORT).show();
                 appRule.setStored(true);
                 appRule.setLabel(appRule.getDisplay());
-                if (Preferences.isOrwallEnabled(context))
+                // paused chains stay in place: keep them up to date
+                if (Preferences.isOrwallEnabled(context) || Preferences.isOrwallPaused(context))
                     appRule.install(context);
             } else {
                 appRule.setOnionType(Constants.DB_ONION_TYPE_NONE);
@@ -218,7 +223,7 @@ public class AppListAdapter extends ArrayAdapter {
             Boolean oldLocalNetwork = appRule.getLocalNetwork();
             boolean success = this.natRules.removeAppFromRules(appRule.getAppUID());
             if (success) {
-                if (Preferences.isOrwallEnabled(context))
+                if (Preferences.isOrwallEnabled(context) || Preferences.isOrwallPaused(context))
                     appRule.uninstall(context);
                 appRule.setStored(false);
                 appRule.setOnionType(Constants.DB_ONION_TYPE_NONE);
@@ -316,10 +321,21 @@ public class AppListAdapter extends ArrayAdapter {
         alert.setPositiveButton(R.string.alert_save, new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialogInterface, int i) {
-                saveAdvanced(appRule, view);
+                saveAdvanced(appRule, view, false);
             }
         });
 
+        // new rules only: they are removed once the grace time is over
+        if (!appRule.isStored()) {
+            alert.setNeutralButton(String.format(context.getString(R.string.alert_save_timed),
+                    Long.valueOf(Preferences.getAppGraceTime(context))), new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialogInterface, int i) {
+                    saveAdvanced(appRule, view, true);
+                }
+            });
+        }
+
         // Will do nothing
         alert.setNegativeButton(R.string.alert_cancel, new DialogInterface.OnClickListener() {
             @Override
@@ -339,7 +355,8 @@ public class AppListAdapter extends ArrayAdapter {
 
     }
 
-    private void saveAdvanced(AppRule appRule, View view) {
+    private void saveAdvanced(AppRule appRule, View view, boolean timed) {
+        RuleScheduler.cancel(context, RuleScheduler.TYPE_APP, appRule.getAppUID());
 
         // Update DB content
         AppRule updated = new AppRule();
@@ -375,6 +392,13 @@ public class AppListAdapter extends ArrayAdapter {
             if (done){
                 updated.install(this.context);
                 Toast.makeText(context, context.getString(R.string.toast_new_rule), Toast.LENGTH_SHORT).show();
+                if (timed) {
+                    long gracetime = Long.valueOf(Preferences.getAppGraceTime(context));
+                    RuleScheduler.schedule(context, new RuleScheduler.Entry(
+                            RuleScheduler.deadlineIn(TimeUnit.MINUTES.toMillis(gracetime)),
+                            RuleScheduler.TYPE_APP, false, updated
+                    ));
+                }
             }
         } else
         // UPDATE
@@ -5,6 +5,7 @@ import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentPagerAdapter;
 
 import org.ethack.orwall.fragments.AppFragment;
+import org.ethack.orwall.fragments.ConnectionsFragment;
 import org.ethack.orwall.fragments.HomeFragment;
 
 /**
@@ -23,12 +24,14 @@ public class TabsPagerAdapter extends FragmentPagerAdapter {
                 return new HomeFragment();
             case 1:
                 return new AppFragment();
+            case 2:
+                return new ConnectionsFragment();
         }
         return null;
     }
 
     @Override
     public int getCount() {
-        return 2;
+        return 3;
     }
 }
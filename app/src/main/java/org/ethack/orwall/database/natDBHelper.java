@@ -18,6 +18,12 @@ public class natDBHelper extends SQLiteOpenHelper {
     public static final String COLUMN_LOCALHOST = "localhost";
     public static final String COLUMN_LOCALNETWORK = "localnetwork";
 
+    public static final String PROFILES_TABLE_NAME = "profiles";
+    public static final String PROFILE_RULES_TABLE_NAME = "profile_rules";
+    public static final String COLUMN_PROFILE = "profile";
+    public static final String COLUMN_FINGERPRINT = "fingerprint";
+    public static final String COLUMN_COMPILED = "compiled";
+
 /*
     @Deprecated
     private static final String COLUMN_ONIONPORT = "onionPort";
@@ -58,7 +64,39 @@ public class natDBHelper extends SQLiteOpenHelper {
                     COLUMN_LOCALNETWORK
             );
 
-    private static final int DATABASE_VERSION = 2;
+    private static final String PROFILES_TABLE_CREATE_V3 =
+            String.format(
+                    "CREATE TABLE %s (" +
+                            "%s TEXT PRIMARY KEY," +
+                            "%s TEXT," +
+                            "%s TEXT)",
+                    PROFILES_TABLE_NAME,
+                    COLUMN_PROFILE,
+                    COLUMN_FINGERPRINT,
+                    COLUMN_COMPILED
+            );
+
+    private static final String PROFILE_RULES_TABLE_CREATE_V3 =
+            String.format(
+                    "CREATE TABLE %s (" +
+                            "%s TEXT NOT NULL," +
+                            "%s INTEGER NOT NULL," +
+                            "%s TEXT NOT NULL," +
+                            "%s TEXT," +
+                            "%s INTEGER," +
+                            "%s INTEGER," +
+                            "PRIMARY KEY (%s, %s))",
+                    PROFILE_RULES_TABLE_NAME,
+                    COLUMN_PROFILE,
+                    COLUMN_APPUID,
+                    COLUMN_APPNAME,
+                    COLUMN_ONIONTYPE,
+                    COLUMN_LOCALHOST,
+                    COLUMN_LOCALNETWORK,
+                    COLUMN_PROFILE, COLUMN_APPUID
+            );
+
+    private static final int DATABASE_VERSION = 3;
     private static final String DB_NAME = "nat.s3db";
 
     public natDBHelper(Context context) {
@@ -68,6 +106,8 @@ public class natDBHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(NAT_TABLE_CREATE_V2);
+        db.execSQL(PROFILES_TABLE_CREATE_V3);
+        db.execSQL(PROFILE_RULES_TABLE_CREATE_V3);
     }
 
     @Override
@@ -89,6 +129,12 @@ public class natDBHelper extends SQLiteOpenHelper {
                                 NAT_TABLE_NAME, COLUMN_APPUID, COLUMN_APPNAME, COLUMN_ONIONTYPE, COLUMN_LOCALHOST, COLUMN_LOCALNETWORK,
                                                 COLUMN_APPUID, COLUMN_APPNAME, COLUMN_ONIONTYPE, NAT_TABLE_NAME));
                         db.execSQL(String.format("DROP TABLE %s_backup;", NAT_TABLE_NAME));
+                        break;
+                    // VERSION 2 -----> 3
+                    case 2:
+                        db.execSQL(PROFILES_TABLE_CREATE_V3);
+                        db.execSQL(PROFILE_RULES_TABLE_CREATE_V3);
+                        break;
                 }
             }
 
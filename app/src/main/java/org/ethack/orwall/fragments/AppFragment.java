@@ -15,11 +15,10 @@ import org.ethack.orwall.adapter.AppListAdapter;
 import org.ethack.orwall.lib.AppRule;
 import org.ethack.orwall.lib.AppRuleComparator;
 import org.ethack.orwall.lib.Constants;
-import org.ethack.orwall.lib.Iptables;
 import org.ethack.orwall.lib.NatRules;
 import org.ethack.orwall.lib.PackageInfoData;
 import org.ethack.orwall.lib.Preferences;
-import org.sufficientlysecure.rootcommands.RootCommands;
+import org.ethack.orwall.lib.StatusProbe;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -33,28 +32,27 @@ import java.util.Map;
  */
 public class AppFragment extends Fragment {
 
+    private View view;
+
+    private final StatusProbe.Listener statusListener = new StatusProbe.Listener() {
+        @Override
+        public void onStatus(StatusProbe.Status status) {
+            if (!isAdded()) return;
+            // Do we have root access ?
+            view.findViewById(R.id.warn_root).setVisibility(status.root ? View.GONE : View.VISIBLE);
+            // Hopefully there IS iptables on this device…
+            view.findViewById(R.id.warn_iptables).setVisibility(status.iptables ? View.GONE : View.VISIBLE);
+            view.findViewById(R.id.warn_init).setVisibility(
+                    (status.initSupported && status.root && !status.initialized) ? View.VISIBLE : View.GONE);
+        }
+    };
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
 
-        View view;
-
         view  = inflater.inflate(R.layout.fragment_tabbed_apps, container, false);
-        Iptables iptables = new Iptables(getActivity());
-        // Do we have root access ?
-        if (RootCommands.rootAccessGiven()) {
-            view.findViewById(R.id.warn_root).setVisibility(View.GONE);
-        } else {
-            view.findViewById(R.id.warn_root).setVisibility(View.VISIBLE);
-        }
-        // Hopefully there IS iptables on this device…
-        if (Iptables.iptablesExists()) {
-            view.findViewById(R.id.warn_iptables).setVisibility(View.GONE);
-        } else {
-            view.findViewById(R.id.warn_iptables).setVisibility(View.VISIBLE);
-        }
-        if (Iptables.initSupported() && !iptables.isInitialized()) {
-            view.findViewById(R.id.warn_init).setVisibility(View.VISIBLE);
-        }
+        // Root and iptables status: probed in the background
+        StatusProbe.request(getActivity(), statusListener);
 
         ListView listView = (ListView) view.findViewById(R.id.id_enabled_apps);
 
@@ -99,6 +97,12 @@ public class AppFragment extends Fragment {
         return view;
     }
 
+    @Override
+    public void onDestroyView() {
+        StatusProbe.removeListener(statusListener);
+        super.onDestroyView();
+    }
+
     /**
      * List all disabled application. Meaning: installed app requiring Internet, but NOT in NatRules.
      * It also filters out special apps like orbot and i2p.
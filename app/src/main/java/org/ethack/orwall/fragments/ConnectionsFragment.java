@@ -0,0 +1,219 @@
+package org.ethack.orwall.fragments;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.app.Fragment;
+import android.support.v4.util.LongSparseArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+
+import org.ethack.orwall.R;
+import org.ethack.orwall.lib.AppRule;
+import org.ethack.orwall.lib.ConnectionTable;
+import org.ethack.orwall.lib.Constants;
+import org.ethack.orwall.lib.Iptables;
+import org.ethack.orwall.lib.NatRules;
+import org.ethack.orwall.lib.Preferences;
+import org.ethack.orwall.lib.StatusProbe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Manage "connections" tab fragment: live connections per app, and whether they go through Tor.
+ *
+ * @link org.ethack.orwall.TabbedMain
+ */
+public class ConnectionsFragment extends Fragment {
+    private final static long REFRESH = 3000;
+    // connections shown per app
+    private final static int MAX_SHOWN = 20;
+
+    private View view;
+    private ArrayAdapter<String> adapter;
+    private ConnectionTable table;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private boolean resumed = false;
+    // resumed and shown: the pager keeps neighbour tabs resumed
+    private boolean running = false;
+    private boolean refreshing = false;
+
+    private final StatusProbe.Listener statusListener = new StatusProbe.Listener() {
+        @Override
+        public void onStatus(StatusProbe.Status status) {
+            // next refresh picks it up
+        }
+    };
+
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            if (!running || refreshing || !isAdded()) return;
+            refreshing = true;
+            final Context context = getActivity().getApplicationContext();
+            final ConnectionTable current = table;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // no su prompt each round: rely on the last probe
+                    StatusProbe.Status status = StatusProbe.getCached();
+                    final boolean root = (status != null && status.root);
+                    final List<ConnectionTable.Connection> connections = current.read(root);
+                    final List<String> rows = summarize(context, connections);
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            refreshing = false;
+                            if (!isAdded() || !running) return;
+                            show(rows, root);
+                            handler.postDelayed(refresh, REFRESH);
+                        }
+                    });
+                }
+            }).start();
+        }
+    };
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        view = inflater.inflate(R.layout.fragment_tabbed_connections, container, false);
+        adapter = new ArrayAdapter<>(getActivity(), android.R.layout.simple_list_item_1, new ArrayList<String>());
+        ((ListView) view.findViewById(R.id.id_connections)).setAdapter(adapter);
+        return view;
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        resumed = true;
+        if (getUserVisibleHint()) start();
+    }
+
+    @Override
+    public void onPause() {
+        stop();
+        resumed = false;
+        super.onPause();
+    }
+
+    @Override
+    public void setUserVisibleHint(boolean isVisibleToUser) {
+        super.setUserVisibleHint(isVisibleToUser);
+        if (!resumed) return;
+        if (isVisibleToUser) {
+            start();
+        } else {
+            stop();
+        }
+    }
+
+    private void start() {
+        if (running) return;
+        running = true;
+        Iptables iptables = new Iptables(getActivity());
+        table = new ConnectionTable(Long.valueOf(Preferences.getTransPort(getActivity())), iptables.getDNSTarget());
+        StatusProbe.request(getActivity(), statusListener);
+        handler.post(refresh);
+    }
+
+    private void stop() {
+        if (!running) return;
+        running = false;
+        handler.removeCallbacks(refresh);
+        StatusProbe.removeListener(statusListener);
+        final ConnectionTable current = table;
+        // conntrack shell may be busy: close it off the main thread
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                current.close();
+            }
+        }).start();
+    }
+
+    private void show(List<String> rows, boolean root) {
+        view.findViewById(R.id.warn_conntrack).setVisibility(root ? View.GONE : View.VISIBLE);
+        view.findViewById(R.id.id_connections_empty).setVisibility(rows.isEmpty() ? View.VISIBLE : View.GONE);
+        adapter.clear();
+        adapter.addAll(rows);
+    }
+
+    /**
+     * One row per app: its name, then one line per connection with its route
+     */
+    private static List<String> summarize(Context context, List<ConnectionTable.Connection> connections) {
+        LongSparseArray<AppRule> rules = new LongSparseArray<>();
+        for (AppRule rule : new NatRules(context).getAllRules()) {
+            rules.put(rule.getAppUID(), rule);
+        }
+
+        LongSparseArray<List<ConnectionTable.Connection>> byUID = new LongSparseArray<>();
+        for (ConnectionTable.Connection connection : connections) {
+            List<ConnectionTable.Connection> list = byUID.get(connection.uid);
+            if (list == null) {
+                list = new ArrayList<>();
+                byUID.put(connection.uid, list);
+            }
+            list.add(connection);
+        }
+
+        PackageManager packageManager = context.getPackageManager();
+        List<String> rows = new ArrayList<>(byUID.size());
+        for (int i = 0; i < byUID.size(); i++) {
+            long uid = byUID.keyAt(i);
+            List<ConnectionTable.Connection> list = byUID.valueAt(i);
+            AppRule rule = rules.get(uid);
+
+            String name;
+            if (rule != null && rule.getAppName() != null) {
+                name = rule.getAppName();
+            } else if (rule != null) {
+                name = rule.getPkgName();
+            } else {
+                String[] packages = packageManager.getPackagesForUid((int) uid);
+                name = (packages != null && packages.length > 0 ? packages[0] : String.valueOf(uid));
+            }
+
+            boolean torApp = (rule != null && Constants.DB_ONION_TYPE_TOR.equals(rule.getOnionType()));
+            boolean leak = false;
+            StringBuilder lines = new StringBuilder();
+            for (int j = 0; j < list.size(); j++) {
+                ConnectionTable.Connection connection = list.get(j);
+                if (connection.via == ConnectionTable.VIA_DIRECT) leak = true;
+                if (j < MAX_SHOWN) {
+                    lines.append(String.format(Locale.US, "\n  %s %s → %s",
+                            connection.proto, connection.getRemote(), getVia(context, connection.via)));
+                }
+            }
+            if (list.size() > MAX_SHOWN) {
+                lines.append(String.format(Locale.US, "\n  … +%d", list.size() - MAX_SHOWN));
+            }
+
+            StringBuilder row = new StringBuilder(String.format(Locale.US, "%s (%d)", name, uid));
+            if (torApp && leak) {
+                row.append('\n').append(context.getString(R.string.connections_leak));
+            }
+            rows.add(row.append(lines).toString());
+        }
+        return rows;
+    }
+
+    private static String getVia(Context context, int via) {
+        switch (via) {
+            case ConnectionTable.VIA_TOR:
+                return context.getString(R.string.connections_via_tor);
+            case ConnectionTable.VIA_LOCAL:
+                return context.getString(R.string.connections_via_local);
+            case ConnectionTable.VIA_DIRECT:
+                return context.getString(R.string.connections_via_direct);
+        }
+        return context.getString(R.string.connections_via_unknown);
+    }
+}
@@ -4,12 +4,14 @@ import android.app.AlertDialog;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
+import android.content.BroadcastReceiver;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
+import android.graphics.Typeface;
 import android.os.Bundle;
-import android.os.CountDownTimer;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
@@ -18,6 +20,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.CompoundButton;
+import android.widget.EditText;
 import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -27,13 +30,17 @@ import org.ethack.orwall.PreferencesActivity;
 import org.ethack.orwall.R;
 import org.ethack.orwall.TabbedMain;
 import org.ethack.orwall.WizardActivity;
+import org.ethack.orwall.lib.BootTimeline;
 import org.ethack.orwall.lib.Constants;
 import org.ethack.orwall.lib.InstallScripts;
 import org.ethack.orwall.lib.Iptables;
 import org.ethack.orwall.lib.Preferences;
-import org.ethack.orwall.lib.Util;
-import org.sufficientlysecure.rootcommands.RootCommands;
+import org.ethack.orwall.lib.RuleExecutor;
+import org.ethack.orwall.lib.RuleScheduler;
+import org.ethack.orwall.lib.StatusProbe;
+import org.ethack.orwall.lib.Profiles;
 
+import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -43,41 +50,41 @@ import java.util.concurrent.TimeUnit;
  */
 public class HomeFragment extends Fragment {
 
-    private CountDownTimer timer;
     private Long browser_uid;
     private Long sip_uid;
-    private Iptables iptables;
     private View home;
 
+    private final StatusProbe.Listener statusListener = new StatusProbe.Listener() {
+        @Override
+        public void onStatus(StatusProbe.Status status) {
+            if (isAdded()) showStatus(status);
+        }
+    };
+
+    private final BroadcastReceiver scheduleReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (isAdded()) updateOptions();
+        }
+    };
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
 
         home = inflater.inflate(R.layout.fragment_tabbed_home, container, false);
 
-        iptables = new Iptables(getActivity());
         boolean initSupported = Iptables.initSupported();
 
         Switch orwallStatus = (Switch) home.findViewById(R.id.orwall_status);
 
         // Status switches — most of them are read-only, as they just displays devices capabilities.
         Switch status_initscript = (Switch) home.findViewById(R.id.status_initscript);
-        Switch status_root = (Switch) home.findViewById(R.id.status_root);
-        Switch status_iptables = (Switch) home.findViewById(R.id.status_iptables);
-        Switch status_ipt_comments = (Switch) home.findViewById(R.id.status_ipt_comments);
-        Switch status_orbot = (Switch) home.findViewById(R.id.status_orbot);
 
         // Buttons
         Button settings = (Button) home.findViewById(R.id.id_settings);
         Button about = (Button) home.findViewById(R.id.id_about);
         Button wizard = (Button) home.findViewById(R.id.id_wizard);
-
-        // Display a big fat warning if IPTables wasn't initialized properly
-        // This warning should be shown only if we aren't expected this situation
-        // If we know there is no init-script support, then don't show it.
-        if (initSupported && !iptables.isInitialized()) {
-            home.findViewById(R.id.warn_init).setVisibility(View.VISIBLE);
-        }
-
+        Button profiles = (Button) home.findViewById(R.id.id_profiles);
 
         orwallStatus.setChecked(Preferences.isOrwallEnabled(getActivity()));
         // orWall might be deactivated. Let's test it!
@@ -91,8 +98,7 @@ public class HomeFragment extends Fragment {
         // Set status switches in order to show the user what's working. Or not working.
 
         // Init script: try to install it and so on
-        InstallScripts installScripts = new InstallScripts(getActivity());
-        installScripts.run();
+        InstallScripts.extract(getActivity());
         boolean enforceInit = Preferences.isEnforceInitScript(getActivity());
         status_initscript.setChecked( (enforceInit && initSupported) );
         status_initscript.setEnabled(initSupported);
@@ -111,37 +117,21 @@ public class HomeFragment extends Fragment {
         status_initscript.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             @Override
             public void onCheckedChanged(CompoundButton compoundButton, boolean b) {
-                boolean checked = compoundButton.isChecked();
-                if (checked) {
-                    Iptables.installInitScript(getActivity());
-                } else {
-                    Iptables.removeIniScript(getActivity());
-                }
+                final boolean checked = compoundButton.isChecked();
+                final Context context = getActivity().getApplicationContext();
+                // root shell and /system remount: not on the main thread
+                RuleExecutor.submit(context, new RuleExecutor.Task() {
+                    @Override
+                    public void run(Iptables iptables) {
+                        if (checked) {
+                            Iptables.installInitScript(context, iptables);
+                        } else {
+                            Iptables.removeIniScript(context);
+                        }
+                    }
+                });
             }
         });
-        // Do we have root access ?
-        if (RootCommands.rootAccessGiven()) {
-            status_root.setChecked(true);
-            home.findViewById(R.id.warn_root).setVisibility(View.GONE);
-        } else {
-            status_root.setChecked(false);
-            home.findViewById(R.id.warn_root).setVisibility(View.VISIBLE);
-        }
-        // Hopefully there IS iptables on this device…
-        if (Iptables.iptablesExists()) {
-            status_iptables.setChecked(true);
-            home.findViewById(R.id.warn_iptables).setVisibility(View.GONE);
-            home.findViewById(R.id.status_iptables_description).setVisibility(View.GONE);
-        } else {
-            status_iptables.setChecked(false);
-            home.findViewById(R.id.warn_iptables).setVisibility(View.VISIBLE);
-            home.findViewById(R.id.status_iptables_description).setVisibility(View.VISIBLE);
-        }
-
-        status_ipt_comments.setChecked(iptables.getSupportComment());
-        // Is orbot installed?
-        status_orbot.setChecked(Util.isOrbotInstalled(getActivity()));
-
         // Shows settings
         settings.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -159,6 +149,14 @@ public class HomeFragment extends Fragment {
             }
         });
 
+        // Switch or save policy profiles
+        profiles.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                showProfiles();
+            }
+        });
+
         // Start wizard
         wizard.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -198,16 +196,36 @@ public class HomeFragment extends Fragment {
         // We want to ensure we can access this setting if and only if there's a selected SIP app
         this.sip_uid = Long.valueOf(Preferences.getSIPApp(getActivity()));
         if (this.sip_uid != 0  && Preferences.isOrwallEnabled(getActivity())) {
-            sipStatus.setClickable(false);
+            sipStatus.setClickable(true);
             sipStatus.setTextColor(Color.BLACK);
 
             sipStatus.setChecked(Preferences.isSIPEnabled(getActivity()));
             sipStatus.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View view) {
-                    boolean checked = ((Switch) view).isChecked();
-                    iptables.manageSip(checked, sip_uid);
-                    Preferences.setSIPEnabled(getActivity(), checked);
+                    final boolean checked = ((Switch) view).isChecked();
+                    final long uid = sip_uid;
+                    final Context context = getActivity().getApplicationContext();
+                    // before the task runs: the init-script is generated from it
+                    Preferences.setSIPEnabled(context, checked);
+                    RuleExecutor.submit(context, new RuleExecutor.Task() {
+                        @Override
+                        public void run(Iptables iptables) {
+                            iptables.manageSip(checked, uid);
+                            Iptables.updateInitScript(context, iptables);
+                        }
+                    });
+
+                    long gracetime = Long.valueOf(Preferences.getSIPGraceTime(context));
+                    if (checked && gracetime > 0) {
+                        // same as the browser: the scheduler revokes it, no grace time means no limit
+                        RuleScheduler.schedule(context, new RuleScheduler.Entry(
+                                RuleScheduler.deadlineIn(TimeUnit.MINUTES.toMillis(gracetime)),
+                                RuleScheduler.TYPE_SIP, false, uid
+                        ));
+                    } else {
+                        RuleScheduler.cancel(context, RuleScheduler.TYPE_SIP, uid);
+                    }
                 }
             });
         } else {
@@ -223,34 +241,31 @@ public class HomeFragment extends Fragment {
      * @param view View passed by onClick
      */
     public void toggleBrowser(final View view) {
-        boolean checked = ((Switch) view).isChecked();
+        final boolean checked = ((Switch) view).isChecked();
+        final long uid = this.browser_uid;
 
-        iptables.manageCaptiveBrowser(checked, this.browser_uid);
+        RuleExecutor.submit(getActivity(), new RuleExecutor.Task() {
+            @Override
+            public void run(Iptables iptables) {
+                iptables.manageCaptiveBrowser(checked, uid);
+                // revoked: the browser's flows would outlive the grant through the fast path
+                if (!checked) iptables.flushConntrack();
+            }
+        });
+        Preferences.setBrowserEnabled(getActivity(), checked);
 
         if (checked) {
-
             long gracetime = Long.valueOf(Preferences.getBrowserGraceTime(getActivity()));
 
-            this.timer = new CountDownTimer(TimeUnit.MINUTES.toMillis(gracetime), TimeUnit.SECONDS.toMillis(30)) {
-                @Override
-                public void onTick(long untilFinished) {
-                    final long minutes = TimeUnit.MILLISECONDS.toMinutes(untilFinished);
-                    final long seconds = TimeUnit.MILLISECONDS.toSeconds(untilFinished) - TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(untilFinished));
-                    CharSequence text = String.format(getResources().getString(R.string.main_counter), minutes, seconds);
-                    Toast.makeText(getActivity(), text, Toast.LENGTH_LONG).show();
-                }
-
-
-                @Override
-                public void onFinish() {
-                    iptables.manageCaptiveBrowser(false, browser_uid);
-                    Preferences.setBrowserEnabled(getActivity(), false);
-                    CharSequence text = getResources().getString(R.string.main_end_of_browser);
-                    Toast.makeText(getActivity(), text, Toast.LENGTH_LONG).show();
-                }
-            }.start();
+            // Revocation is left to the scheduler, so that it survives this fragment.
+            RuleScheduler.schedule(getActivity(), new RuleScheduler.Entry(
+                    RuleScheduler.deadlineIn(TimeUnit.MINUTES.toMillis(gracetime)),
+                    RuleScheduler.TYPE_BROWSER, false, this.browser_uid
+            ));
+            CharSequence text = String.format(getResources().getString(R.string.main_counter), gracetime, 0);
+            Toast.makeText(getActivity(), text, Toast.LENGTH_LONG).show();
         } else {
-            this.timer.cancel();
+            RuleScheduler.cancel(getActivity(), RuleScheduler.TYPE_BROWSER, this.browser_uid);
         }
     }
 
@@ -301,6 +316,18 @@ public class HomeFragment extends Fragment {
                 }
             });
 
+            // pause keeps all chains: enabling again is instant
+            alertDialog.setNeutralButton(getString(R.string.alert_pause), new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialogInterface, int i) {
+                    bgpProcess.putExtra(Constants.ACTION, Constants.ACTION_PAUSE_ORWALL);
+                    getActivity().startService(bgpProcess);
+                    Preferences.setOrwallEnabled(getActivity(), false);
+                    updateOptions();
+                    notificationManager.notify(1, notification.build());
+                }
+            });
+
             alertDialog.setNegativeButton(getString(R.string.alert_cancel), new DialogInterface.OnClickListener() {
                 @Override
                 public void onClick(DialogInterface dialogInterface, int i) {
@@ -311,6 +338,60 @@ public class HomeFragment extends Fragment {
         }
     }
 
+    /**
+     * Shows saved profiles: a click switches to it
+     */
+    public void showProfiles() {
+        final ArrayList<String> names = new Profiles(getActivity()).getNames();
+
+        new AlertDialog.Builder(getActivity())
+                .setTitle(getString(R.string.profiles_title))
+                .setItems(names.toArray(new String[names.size()]), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        Intent bgpProcess = new Intent(getActivity(), BackgroundProcess.class);
+                        bgpProcess.putExtra(Constants.ACTION, Constants.ACTION_APPLY_PROFILE);
+                        bgpProcess.putExtra(Constants.PARAM_PROFILE, names.get(i));
+                        getActivity().startService(bgpProcess);
+                        Toast.makeText(getActivity(), String.format(getString(R.string.toast_apply_profile), names.get(i)), Toast.LENGTH_SHORT).show();
+                    }
+                })
+                .setPositiveButton(getString(R.string.profile_save), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        showSaveProfile();
+                    }
+                })
+                .setNegativeButton(getString(R.string.alert_cancel), null)
+                .show();
+    }
+
+    /**
+     * Asks for a name, and saves current rules as a profile
+     */
+    private void showSaveProfile() {
+        final EditText name = new EditText(getActivity());
+        name.setHint(getString(R.string.profile_name));
+        name.setText(Preferences.getCurrentProfile(getActivity()));
+
+        new AlertDialog.Builder(getActivity())
+                .setTitle(getString(R.string.profile_save))
+                .setView(name)
+                .setPositiveButton(getString(R.string.alert_save), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        String profile = name.getText().toString().trim();
+                        if (profile.isEmpty()) return;
+                        Intent bgpProcess = new Intent(getActivity(), BackgroundProcess.class);
+                        bgpProcess.putExtra(Constants.ACTION, Constants.ACTION_SAVE_PROFILE);
+                        bgpProcess.putExtra(Constants.PARAM_PROFILE, profile);
+                        getActivity().startService(bgpProcess);
+                    }
+                })
+                .setNegativeButton(getString(R.string.alert_cancel), null)
+                .show();
+    }
+
     public void showAbout() {
 
         LayoutInflater li = LayoutInflater.from(getActivity());
@@ -328,21 +409,76 @@ public class HomeFragment extends Fragment {
         new AlertDialog.Builder(getActivity(), AlertDialog.THEME_HOLO_LIGHT)
                 .setTitle(getString(R.string.button_about))
                 .setView(v_about)
+                .setNeutralButton(getString(R.string.boot_timeline_title), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        showBootTimeline();
+                    }
+                })
                 .show();
     }
 
-    @Override
-    public void onResume() {
-        super.onResume();
+    /**
+     * Shows boot phases percentiles over last boots
+     */
+    public void showBootTimeline() {
+        String summary = BootTimeline.summary(getActivity());
+        TextView text = new TextView(getActivity());
+        text.setTypeface(Typeface.MONOSPACE);
+        text.setText(summary == null ? getString(R.string.boot_timeline_empty) : summary);
+
+        new AlertDialog.Builder(getActivity())
+                .setTitle(getString(R.string.boot_timeline_title))
+                .setView(text)
+                .setNegativeButton(getString(R.string.hint_close), null)
+                .show();
+    }
+
+    /**
+     * Show what's working. Or not working.
+     *
+     * @param status probe results
+     */
+    private void showStatus(StatusProbe.Status status) {
+        // Display a big fat warning if IPTables wasn't initialized properly
+        // This warning should be shown only if we aren't expected this situation
+        // If we know there is no init-script support, then don't show it.
+        home.findViewById(R.id.warn_init).setVisibility(
+                (status.initSupported && status.root && !status.initialized) ? View.VISIBLE : View.GONE);
+        // Do we have root access ?
+        ((Switch) home.findViewById(R.id.status_root)).setChecked(status.root);
+        home.findViewById(R.id.warn_root).setVisibility(status.root ? View.GONE : View.VISIBLE);
+        // Hopefully there IS iptables on this device…
+        ((Switch) home.findViewById(R.id.status_iptables)).setChecked(status.iptables);
+        home.findViewById(R.id.warn_iptables).setVisibility(status.iptables ? View.GONE : View.VISIBLE);
+        home.findViewById(R.id.status_iptables_description).setVisibility(status.iptables ? View.GONE : View.VISIBLE);
+
+        ((Switch) home.findViewById(R.id.status_ipt_comments)).setChecked(status.comments);
+        // Is orbot installed?
+        ((Switch) home.findViewById(R.id.status_orbot)).setChecked(status.orbot);
 
-        Switch orwallSwitch = (Switch) home.findViewById(R.id.orwall_status);
         // checking true orwall status
-        if (Preferences.isOrwallEnabled(getActivity()) &&
-                !iptables.haveBooted()){
+        if (status.root && Preferences.isOrwallEnabled(getActivity()) && !status.booted) {
             Preferences.setOrwallEnabled(getActivity(), false);
-            orwallSwitch.setChecked(false);
+            ((Switch) home.findViewById(R.id.orwall_status)).setChecked(false);
         }
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
 
+        // Root, iptables and Orbot status: probed in the background, see showStatus()
+        StatusProbe.request(getActivity(), statusListener);
         updateOptions();
+        // grants may expire while we're shown
+        getActivity().registerReceiver(scheduleReceiver, new IntentFilter(Constants.ACTION_SCHEDULE_APPLIED));
+    }
+
+    @Override
+    public void onPause() {
+        StatusProbe.removeListener(statusListener);
+        getActivity().unregisterReceiver(scheduleReceiver);
+        super.onPause();
     }
 }
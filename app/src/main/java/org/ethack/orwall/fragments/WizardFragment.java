@@ -1,5 +1,7 @@
 package org.ethack.orwall.fragments;
 
+import android.content.Context;
+import android.content.Intent;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.view.LayoutInflater;
@@ -9,12 +11,14 @@ import android.widget.CompoundButton;
 import android.widget.Switch;
 import android.widget.TextView;
 
+import org.ethack.orwall.BackgroundProcess;
 import org.ethack.orwall.R;
+import org.ethack.orwall.lib.Constants;
 import org.ethack.orwall.lib.InstallScripts;
 import org.ethack.orwall.lib.Iptables;
 import org.ethack.orwall.lib.Preferences;
-import org.ethack.orwall.lib.Util;
-import org.sufficientlysecure.rootcommands.RootCommands;
+import org.ethack.orwall.lib.RuleExecutor;
+import org.ethack.orwall.lib.StatusProbe;
 
 import java.util.Locale;
 
@@ -99,14 +103,14 @@ public class WizardFragment extends Fragment {
         // Add some stuff on the very first Wizard page
         if (mPageNumber == 0) {
             ViewGroup main_content = (ViewGroup) rootView.findViewById(R.id.id_main_content);
-            final Iptables iptables = new Iptables(getActivity());
             // Extract scripts
-            InstallScripts installScripts = new InstallScripts(getActivity());
-            installScripts.run();
+            InstallScripts.extract(getActivity());
 
             // init-script installation
-            // install init as default behavior
-            Iptables.installInitScript(getActivity());
+            // install init as default behavior, in the background
+            Intent bgpProcess = new Intent(getActivity(), BackgroundProcess.class);
+            bgpProcess.putExtra(Constants.ACTION, Constants.ACTION_UPDATE_INIT_SCRIPT);
+            getActivity().startService(bgpProcess);
             boolean enforceInit = Preferences.isEnforceInitScript(getActivity());
             boolean initSupported = Iptables.initSupported();
 
@@ -118,45 +122,59 @@ public class WizardFragment extends Fragment {
             initScript.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
                 @Override
                 public void onCheckedChanged(CompoundButton compoundButton, boolean b) {
-                    boolean checked = compoundButton.isChecked();
-                    if (checked) {
-                        Iptables.installInitScript(getActivity());
-                    } else {
-                        Iptables.removeIniScript(getActivity());
-                    }
+                    final boolean checked = compoundButton.isChecked();
+                    final Context context = getActivity().getApplicationContext();
+                    // root shell and /system remount: not on the main thread
+                    RuleExecutor.submit(context, new RuleExecutor.Task() {
+                        @Override
+                        public void run(Iptables iptables) {
+                            if (checked) {
+                                Iptables.installInitScript(context, iptables);
+                            } else {
+                                Iptables.removeIniScript(context);
+                            }
+                        }
+                    });
                 }
             });
 
             main_content.addView(initScript);
 
             // Root status
-            Switch rootStatus = new Switch(getActivity());
-            rootStatus.setChecked(RootCommands.rootAccessGiven());
+            final Switch rootStatus = new Switch(getActivity());
             rootStatus.setEnabled(false);
             rootStatus.setText(getString(R.string.wizard_init_root_text));
             main_content.addView(rootStatus);
 
             // Does iptables exist?
-            Switch iptablesStatus = new Switch(getActivity());
-            iptablesStatus.setChecked(Iptables.iptablesExists());
+            final Switch iptablesStatus = new Switch(getActivity());
             iptablesStatus.setEnabled(false);
             iptablesStatus.setText(getString(R.string.wizard_init_iptables_text));
             main_content.addView(iptablesStatus);
 
             // Does current kernel support IPTables comments?
-            Switch iptablesComments = new Switch(getActivity());
-            iptablesComments.setChecked(iptables.getSupportComment());
+            final Switch iptablesComments = new Switch(getActivity());
             iptablesComments.setEnabled(false);
             iptablesComments.setText(getString(R.string.wizard_init_ipt_comments_text));
             main_content.addView(iptablesComments);
 
             // Is orbot installed?
-            Switch orbotStatus = new Switch(getActivity());
-            orbotStatus.setChecked(Util.isOrbotInstalled(getActivity()));
+            final Switch orbotStatus = new Switch(getActivity());
             orbotStatus.setEnabled(false);
             orbotStatus.setText(getString(R.string.wizard_orbot_status_text));
             main_content.addView(orbotStatus);
 
+            // read-only switches are filled once probed, in the background
+            StatusProbe.request(getActivity(), new StatusProbe.Listener() {
+                @Override
+                public void onStatus(StatusProbe.Status status) {
+                    rootStatus.setChecked(status.root);
+                    iptablesStatus.setChecked(status.iptables);
+                    iptablesComments.setChecked(status.comments);
+                    orbotStatus.setChecked(status.orbot);
+                }
+            });
+
         }
 
         return rootView;
@@ -170,10 +170,21 @@ public class AppRule {
 
     public void install(Context context){
         install(context, null);
+        updateInitScript(context);
     }
 
     public void uninstall(Context context){
         uninstall(context, null);
+        updateInitScript(context);
+    }
+
+    /**
+     * Queued after the rule change, so that the init-script carries it
+     */
+    private static void updateInitScript(Context context){
+        Intent bg = new Intent(context, BackgroundProcess.class);
+        bg.putExtra(Constants.ACTION, Constants.ACTION_UPDATE_INIT_SCRIPT);
+        context.startService(bg);
     }
 
 
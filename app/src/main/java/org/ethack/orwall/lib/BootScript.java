@@ -0,0 +1,216 @@
+package org.ethack.orwall.lib;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.ethack.orwall.R;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Init-script generated from a compiled ruleset: the whole policy is loaded at boot with
+ * one iptables-restore for IPv4 and one for IPv6, instead of waiting for the app.
+ * Once rules are in, the script creates a witness chain named after the payload hashes,
+ * so that the app only has to check it at boot.
+ */
+public class BootScript {
+    private final static String MARKER_PREFIX = "ow_BOOT_";
+    private final static Pattern COMMAND = Pattern.compile("^(-t (\\S+) )?-([A-Z]) (\\S+)(.*)$");
+
+    private final String ipv4;
+    private final String ipv6;
+    private final String lock;
+    private final String marker;
+
+    /**
+     * @param orbotUID Orbot UID, allowed through the boot lock
+     * @param compiled ruleset, from Iptables.compile()
+     */
+    public BootScript(int orbotUID, List<String> compiled) {
+        this.ipv4 = toRestore(compiled);
+        this.ipv6 = toRestore(getIPv6Rules());
+        this.lock = toRestore(getLockRules(orbotUID));
+        String hash = sha256(ipv4 + ipv6);
+        this.marker = MARKER_PREFIX + (hash.length() > 16 ? hash.substring(0, 16) : hash);
+    }
+
+    /**
+     * @return digest of the rules this script carries
+     */
+    public String getDigest() {
+        return sha256(lock + ipv6 + ipv4);
+    }
+
+    /**
+     * @return name of the witness chain this script creates
+     */
+    public String getMarker() {
+        return marker;
+    }
+
+    /**
+     * Same as Iptables.initIPv6()
+     */
+    private static List<String> getIPv6Rules() {
+        List<String> rules = new ArrayList<>();
+        rules.add("-P INPUT DROP");
+        rules.add("-P OUTPUT DROP");
+        rules.add("-P FORWARD DROP");
+        rules.add("-I INPUT -j REJECT");
+        rules.add("-I OUTPUT -j REJECT");
+        rules.add("-I FORWARD -j REJECT");
+        return rules;
+    }
+
+    /**
+     * Block everything but Orbot, until the full policy is in
+     */
+    private static List<String> getLockRules(int orbotUID) {
+        List<String> rules = new ArrayList<>();
+        for (String chain : new String[]{"OUTPUT", "INPUT"}) {
+            rules.add(String.format("-P %s DROP", chain));
+            rules.add(String.format("-N ow_%s_LOCK", chain));
+            if (orbotUID > 0) {
+                rules.add(String.format(Locale.US,
+                        "-A ow_%s_LOCK -m owner --uid-owner %d -m conntrack --ctstate NEW,RELATED,ESTABLISHED -j ACCEPT",
+                        chain, orbotUID
+                ));
+            }
+            rules.add(String.format("-A ow_%s_LOCK -j DROP", chain));
+            rules.add(String.format("-I %s -j ow_%s_LOCK", chain, chain));
+        }
+        return rules;
+    }
+
+    /**
+     * Turn rules, as passed to iptables, into an iptables-restore --noflush payload.
+     * Chains are brand new at boot: they are declared up front, and flushes are dropped.
+     * @param rules rules, in order
+     * @return payload
+     */
+    public static String toRestore(List<String> rules) {
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+        Map<String, List<String>> bodies = new LinkedHashMap<>();
+        for (String rule : rules) {
+            Matcher matcher = COMMAND.matcher(rule);
+            if (!matcher.matches()) continue;
+            String table = (matcher.group(2) == null ? "filter" : matcher.group(2));
+            String command = matcher.group(3);
+            String chain = matcher.group(4);
+            String spec = matcher.group(5);
+            if (!headers.containsKey(table)) {
+                headers.put(table, new ArrayList<String>());
+                bodies.put(table, new ArrayList<String>());
+            }
+
+            if (command.equals("N")) {
+                headers.get(table).add(String.format(":%s - [0:0]", chain));
+            } else if (command.equals("P")) {
+                headers.get(table).add(String.format(":%s%s [0:0]", chain, spec));
+            } else if (!command.equals("F")) {
+                bodies.get(table).add(String.format("-%s %s%s", command, chain, spec));
+            }
+        }
+
+        StringBuilder payload = new StringBuilder();
+        for (String table : headers.keySet()) {
+            payload.append('*').append(table).append('\n');
+            for (String line : headers.get(table)) {
+                payload.append(line).append('\n');
+            }
+            for (String line : bodies.get(table)) {
+                payload.append(line).append('\n');
+            }
+            payload.append("COMMIT\n");
+        }
+        return payload.toString();
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] digest = md.digest(value.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            Log.e("BootScript", "No such algorithm: SHA-256");
+        } catch (UnsupportedEncodingException e) {
+            Log.e("BootScript", "No UTF-8 support");
+        }
+        return Constants.E_NO_SUCH_ALGO;
+    }
+
+    /**
+     * Fill the script template from raw resources
+     * @param context application context
+     * @return script content, null on failure
+     */
+    public String render(Context context) {
+        String template;
+        try {
+            InputStream is = context.getResources().openRawResource(R.raw.userinit);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                byte buf[] = new byte[1024];
+                int len;
+                while ((len = is.read(buf)) > 0) {
+                    out.write(buf, 0, len);
+                }
+            } finally {
+                is.close();
+            }
+            template = out.toString("UTF-8");
+        } catch (IOException e) {
+            Log.e("BootScript", "Unable to read init-script template");
+            return null;
+        }
+        return template
+                .replace("@IPV4_SHA256@", sha256(ipv4))
+                .replace("@IPV6_SHA256@", sha256(ipv6))
+                .replace("@IPV4_LOCK@", lock)
+                .replace("@IPV6_RULES@", ipv6)
+                .replace("@IPV4_RULES@", ipv4)
+                .replace("@MARKER@", marker)
+                .replace("@MARKS_FILE@", BootTimeline.MARKS_FILE);
+    }
+
+    /**
+     * Write the script, executable
+     * @param context application context
+     * @param file destination
+     * @return true if success
+     */
+    public boolean write(Context context, File file) {
+        String script = render(context);
+        if (script == null) return false;
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(script.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            return file.setReadable(true, false) && file.setExecutable(true, false);
+        } catch (IOException e) {
+            Log.e("BootScript", "Unable to write init-script");
+        }
+        return false;
+    }
+}
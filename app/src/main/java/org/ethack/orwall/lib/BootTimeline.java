@@ -0,0 +1,208 @@
+package org.ethack.orwall.lib;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Boot timeline: when each boot phase happened, in milliseconds since kernel start.
+ * The init-script writes its own marks from /proc/uptime; the app adds its phases on top.
+ * Last boots are kept in a small ring file, one line per boot.
+ */
+public class BootTimeline {
+    private final static String TAG = "BootTimeline";
+    private final static String FILE = "boot_timeline";
+    private final static int SIZE = 20;
+
+    /** Written by the init-script */
+    public final static String MARKS_FILE = "/data/local/tmp/orwall_boot.marks";
+
+    public final static String SCRIPT_START = "script_start";
+    public final static String LOCK_INSTALLED = "lock_installed";
+    public final static String SCRIPT_DONE = "script_done";
+    public final static String BROADCAST = "broadcast";
+    public final static String CHAINS_INIT = "chains_init";
+    public final static String LOCK_REMOVED = "lock_removed";
+    public final static String RULES = "rules";
+    public final static String ALL_APPLIED = "all_applied";
+
+    private final static String[] PHASES = {
+            SCRIPT_START, LOCK_INSTALLED, SCRIPT_DONE, BROADCAST, CHAINS_INIT, LOCK_REMOVED, RULES, ALL_APPLIED
+    };
+
+    private static Map<String, Long> current = null;
+    private static int rules = 0;
+
+    /**
+     * Start recording a boot
+     * @param scriptMarks init-script marks, as "phase uptime" lines. May be null.
+     * @param received    elapsed realtime the boot broadcast was received at
+     */
+    public static synchronized void begin(final String scriptMarks, final long received) {
+        current = new LinkedHashMap<>();
+        rules = 0;
+        if (scriptMarks != null) {
+            for (String line : scriptMarks.split("\n")) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length != 2) continue;
+                try {
+                    current.put(fields[0], (long) (Double.valueOf(fields[1]) * 1000));
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Bad mark: " + line);
+                }
+            }
+        }
+        current.put(BROADCAST, received);
+    }
+
+    /**
+     * Timestamp a phase of the current boot. Does nothing outside of a boot.
+     * @param phase phase name
+     */
+    public static synchronized void mark(final String phase) {
+        if (current == null) return;
+        current.put(phase, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Timestamp an app rule: only the last one is kept, with a count
+     */
+    public static synchronized void markRule() {
+        if (current == null) return;
+        rules++;
+        mark(RULES);
+    }
+
+    /**
+     * Close the current boot, and store it
+     * @param context application context
+     */
+    public static synchronized void end(Context context) {
+        if (current == null) return;
+        mark(ALL_APPLIED);
+
+        StringBuilder line = new StringBuilder(String.format(Locale.US, "%d;rule_count=%d", System.currentTimeMillis(), rules));
+        for (Map.Entry<String, Long> entry : current.entrySet()) {
+            line.append(String.format(Locale.US, ";%s=%d", entry.getKey(), entry.getValue()));
+        }
+        current = null;
+
+        List<String> lines = readLines(context);
+        lines.add(line.toString());
+        while (lines.size() > SIZE) {
+            lines.remove(0);
+        }
+        try {
+            FileOutputStream out = context.openFileOutput(FILE, Context.MODE_PRIVATE);
+            try {
+                for (String l : lines) {
+                    out.write((l + "\n").getBytes("UTF-8"));
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save boot timeline");
+        }
+    }
+
+    private static List<String> readLines(Context context) {
+        List<String> lines = new ArrayList<>();
+        File file = new File(context.getFilesDir(), FILE);
+        if (!file.exists()) return lines;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) lines.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read boot timeline");
+        }
+        return lines;
+    }
+
+    /**
+     * @param context application context
+     * @return stored boots, oldest first, as phase → value
+     */
+    public static List<Map<String, Long>> load(Context context) {
+        List<Map<String, Long>> boots = new ArrayList<>();
+        for (String line : readLines(context)) {
+            Map<String, Long> boot = new LinkedHashMap<>();
+            String[] fields = line.split(";");
+            for (int i = 1; i < fields.length; i++) {
+                String[] kv = fields[i].split("=", 2);
+                if (kv.length != 2) continue;
+                try {
+                    boot.put(kv[0], Long.valueOf(kv[1]));
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Bad entry: " + fields[i]);
+                }
+            }
+            boots.add(boot);
+        }
+        return boots;
+    }
+
+    /**
+     * Nearest-rank percentile
+     */
+    private static long percentile(List<Long> sorted, int p) {
+        int rank = (int) Math.ceil(p / 100.0 * sorted.size());
+        return sorted.get(Math.max(rank - 1, 0));
+    }
+
+    /**
+     * Percentiles of each phase, and of the time spent in lockdown, over stored boots
+     * @param context application context
+     * @return printable summary, null if no boot was recorded
+     */
+    public static String summary(Context context) {
+        List<Map<String, Long>> boots = load(context);
+        if (boots.isEmpty()) return null;
+
+        Map<String, List<Long>> values = new LinkedHashMap<>();
+        for (String phase : PHASES) {
+            values.put(phase, new ArrayList<Long>());
+        }
+        values.put("lockdown", new ArrayList<Long>());
+        for (Map<String, Long> boot : boots) {
+            for (String phase : PHASES) {
+                if (boot.containsKey(phase)) values.get(phase).add(boot.get(phase));
+            }
+            // lock is removed either by the init-script or by the app
+            Long removed = (boot.containsKey(LOCK_REMOVED) ? boot.get(LOCK_REMOVED) : boot.get(SCRIPT_DONE));
+            if (boot.containsKey(LOCK_INSTALLED) && removed != null) {
+                values.get("lockdown").add(removed - boot.get(LOCK_INSTALLED));
+            }
+        }
+
+        StringBuilder result = new StringBuilder(String.format(Locale.US,
+                "%d boots, ms since kernel start (lockdown: duration)\n%-15s %7s %7s %7s\n", boots.size(), "phase", "p50", "p90", "max"));
+        for (Map.Entry<String, List<Long>> entry : values.entrySet()) {
+            List<Long> sorted = entry.getValue();
+            if (sorted.isEmpty()) continue;
+            Collections.sort(sorted);
+            result.append(String.format(Locale.US, "%-15s %7d %7d %7d\n", entry.getKey(),
+                    percentile(sorted, 50), percentile(sorted, 90), sorted.get(sorted.size() - 1)));
+        }
+        return result.toString();
+    }
+}
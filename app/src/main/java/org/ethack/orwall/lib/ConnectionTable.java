@@ -0,0 +1,406 @@
+package org.ethack.orwall.lib;
+
+import android.util.Log;
+
+import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.command.Command;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Live sockets, read from /proc/net/{tcp,tcp6,udp,udp6}, and where they actually go,
+ * read from /proc/net/nf_conntrack when root is available.
+ * <p/>
+ * Lines are parsed in place, field by field: no regex, no split, and nothing is kept for
+ * listening or closed sockets, so a refresh costs one pass over each file.
+ */
+public class ConnectionTable {
+    private final static String TAG = "ConnectionTable";
+    private final static String[] SOCKETS = {"tcp", "tcp6", "udp", "udp6"};
+    private final static String CONNTRACK = "/proc/net/nf_conntrack";
+    private final static int PROTO_TCP = 6;
+    private final static int PROTO_UDP = 17;
+    // /proc/net/tcp states worth showing
+    private final static int TCP_ESTABLISHED = 0x01;
+    private final static int TCP_SYN_SENT = 0x02;
+
+    /**
+     * Where a connection goes
+     */
+    public final static int VIA_UNKNOWN = 0;
+    public final static int VIA_DIRECT = 1;
+    public final static int VIA_TOR = 2;
+    public final static int VIA_LOCAL = 3;
+
+    public static class Connection {
+        public final String proto;
+        public final int uid;
+        public final int localPort;
+        public final int remotePort;
+        // remote address, as four host-order words; only the last one is used for IPv4
+        private final int[] remote;
+        private final boolean v6;
+        public int via = VIA_UNKNOWN;
+
+        private Connection(String proto, int uid, int localPort, int[] remote, int remotePort, boolean v6) {
+            this.proto = proto;
+            this.uid = uid;
+            this.localPort = localPort;
+            this.remote = remote;
+            this.remotePort = remotePort;
+            this.v6 = v6;
+        }
+
+        private boolean isMapped() {
+            return remote[0] == 0 && remote[1] == 0 && remote[2] == 0xffff;
+        }
+
+        public boolean isLoopback() {
+            if (!v6 || isMapped()) return (remote[3] >>> 24) == 127;
+            return remote[0] == 0 && remote[1] == 0 && remote[2] == 0 && remote[3] == 1;
+        }
+
+        public String getRemote() {
+            int last = remote[3];
+            if (!v6 || isMapped()) {
+                return String.format(Locale.US, "%d.%d.%d.%d:%d",
+                        last >>> 24, (last >> 16) & 0xff, (last >> 8) & 0xff, last & 0xff, remotePort);
+            }
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < 4; i++) {
+                if (i > 0) sb.append(':');
+                sb.append(Integer.toHexString(remote[i] >>> 16)).append(':').append(Integer.toHexString(remote[i] & 0xffff));
+            }
+            return sb.append("]:").append(remotePort).toString();
+        }
+
+        private String getKey() {
+            // conntrack shows IPv4 peers of IPv6 sockets as IPv4: same key for both
+            int[] address = (v6 ? remote : new int[]{0, 0, 0xffff, remote[3]});
+            return key(proto.startsWith("tcp") ? PROTO_TCP : PROTO_UDP, localPort, address, remotePort);
+        }
+    }
+
+    private final long transPort;
+    private final long dnsPort;
+    private Shell shell = null;
+    // conntrack original tuple -> redirected to Tor or not
+    private final Map<String, Boolean> redirected = new HashMap<>();
+
+    /**
+     * @param transPort Orbot TransPort
+     * @param dnsPort   DNS redirection target
+     */
+    public ConnectionTable(long transPort, long dnsPort) {
+        this.transPort = transPort;
+        this.dnsPort = dnsPort;
+    }
+
+    /**
+     * Ports alone collide between peers: the remote address is part of the key.
+     * IPv4 addresses are given as IPv4-mapped IPv6 ones.
+     */
+    private static String key(int proto, int localPort, int[] remote, int remotePort) {
+        StringBuilder sb = new StringBuilder(48);
+        sb.append(proto).append(' ').append(localPort).append(' ');
+        for (int word : remote) {
+            sb.append(Integer.toHexString(word)).append(':');
+        }
+        return sb.append(' ').append(remotePort).toString();
+    }
+
+    /**
+     * Read current connections
+     *
+     * @param conntrack true to read conntrack too, as root
+     * @return open connections, with their route when known
+     */
+    public synchronized List<Connection> read(boolean conntrack) {
+        List<Connection> connections = new ArrayList<>();
+        for (String file : SOCKETS) {
+            readSockets(file, connections);
+        }
+
+        boolean tracked = conntrack && readConntrack();
+        for (Connection connection : connections) {
+            if (connection.isLoopback()) {
+                connection.via = VIA_LOCAL;
+            } else if (tracked) {
+                Boolean tor = redirected.get(connection.getKey());
+                if (tor != null) connection.via = (tor ? VIA_TOR : VIA_DIRECT);
+            }
+        }
+        return connections;
+    }
+
+    /**
+     * Close the root shell used for conntrack, if any
+     */
+    public synchronized void close() {
+        if (shell != null) {
+            try {
+                shell.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close shell");
+            }
+            shell = null;
+        }
+    }
+
+    private static void readSockets(String name, List<Connection> connections) {
+        boolean v6 = name.endsWith("6");
+        boolean tcp = name.startsWith("tcp");
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/net/" + name), 16384);
+            // header
+            reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Connection connection = parseSocket(line, name, v6, tcp);
+                if (connection != null) connections.add(connection);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read /proc/net/" + name);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * "sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid ..."
+     * Addresses are hex words in host order, ports are hex.
+     */
+    private static Connection parseSocket(String line, String proto, boolean v6, boolean tcp) {
+        int length = line.length();
+        int words = (v6 ? 4 : 1);
+
+        int pos = skipField(line, 0);                       // sl
+        pos = skipSpaces(line, pos);
+        int localEnd = pos + words * 8;                      // local_address
+        if (localEnd + 5 > length) return null;
+        int localPort = (int) hex(line, localEnd + 1, localEnd + 5);
+        pos = skipSpaces(line, localEnd + 5);
+
+        int[] remote = new int[4];
+        for (int i = 0; i < words; i++) {                   // rem_address
+            remote[4 - words + i] = Integer.reverseBytes((int) hex(line, pos + i * 8, pos + i * 8 + 8));
+        }
+        pos += words * 8;
+        if (pos + 5 > length) return null;
+        int remotePort = (int) hex(line, pos + 1, pos + 5);
+        pos = skipSpaces(line, pos + 5);
+
+        int state = (int) hex(line, pos, pos + 2);          // st
+        pos = skipField(line, pos);                          // st
+        pos = skipField(line, skipSpaces(line, pos));        // tx_queue:rx_queue
+        pos = skipField(line, skipSpaces(line, pos));        // tr:tm->when
+        pos = skipField(line, skipSpaces(line, pos));        // retrnsmt
+        pos = skipSpaces(line, pos);
+        int end = skipField(line, pos);                      // uid
+        if (end == pos) return null;
+
+        // no peer: listening, or unconnected UDP
+        if (remotePort == 0) return null;
+        if (tcp && state != TCP_ESTABLISHED && state != TCP_SYN_SENT) return null;
+
+        int uid = 0;
+        for (int i = pos; i < end; i++) {
+            uid = uid * 10 + (line.charAt(i) - '0');
+        }
+        return new Connection(proto, uid, localPort, remote, remotePort, v6);
+    }
+
+    private static int skipSpaces(String line, int pos) {
+        while (pos < line.length() && line.charAt(pos) == ' ') pos++;
+        return pos;
+    }
+
+    private static int skipField(String line, int pos) {
+        pos = skipSpaces(line, pos);
+        while (pos < line.length() && line.charAt(pos) != ' ') pos++;
+        return pos;
+    }
+
+    private static long hex(String line, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to && i < line.length(); i++) {
+            value = (value << 4) | Character.digit(line.charAt(i), 16);
+        }
+        return value;
+    }
+
+    private boolean readConntrack() {
+        if (shell == null) {
+            try {
+                shell = Shell.startRootShell();
+            } catch (IOException e) {
+                Log.e(TAG, "NO shell !");
+                return false;
+            }
+        }
+        redirected.clear();
+        ConntrackCommand cmd = new ConntrackCommand();
+        try {
+            shell.add(cmd).waitForFinish();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read conntrack");
+            close();
+            return false;
+        } catch (TimeoutException e) {
+            Log.e(TAG, "A timeout was reached");
+            close();
+            return false;
+        }
+        return cmd.getExitCode() == 0;
+    }
+
+    /**
+     * Feeds conntrack lines straight to the parser, without buffering the whole table
+     */
+    private class ConntrackCommand extends Command {
+        private int exitCode;
+
+        ConntrackCommand() {
+            super("cat " + CONNTRACK);
+        }
+
+        @Override
+        public void output(int id, String line) {
+            parseConntrack(line);
+        }
+
+        @Override
+        public void afterExecution(int id, int exitCode) {
+            this.exitCode = exitCode;
+        }
+
+        int getExitCode() {
+            return exitCode;
+        }
+    }
+
+    /**
+     * "ipv4 2 tcp 6 431999 ESTABLISHED src=A dst=B sport=P dport=Q src=C dst=A sport=R dport=P ..."
+     * First tuple is the original direction, second one the reply. A connection redirected to Tor
+     * gets its reply from 127.0.0.1:TransPort (or the DNS port).
+     */
+    private void parseConntrack(String line) {
+        int proto;
+        int src = line.indexOf(" src=");
+        if (src < 0) return;
+        int tcp = line.indexOf(" tcp ");
+        int udp = line.indexOf(" udp ");
+        if (tcp >= 0 && tcp < src) {
+            proto = PROTO_TCP;
+        } else if (udp >= 0 && udp < src) {
+            proto = PROTO_UDP;
+        } else {
+            return;
+        }
+
+        int dst = line.indexOf(" dst=", src);
+        int sport = line.indexOf(" sport=", src);
+        int dport = line.indexOf(" dport=", src);
+        int replySrc = line.indexOf(" src=", src + 1);
+        if (dst < 0 || sport < 0 || dport < 0 || replySrc < 0) return;
+        int dstEnd = line.indexOf(' ', dst + 5);
+        int[] remote = address(line, dst + 5, (dstEnd < 0 ? line.length() : dstEnd));
+        if (remote == null) return;
+        int replySport = line.indexOf(" sport=", replySrc);
+        if (replySport < 0) return;
+
+        int localPort = decimal(line, sport + 7);
+        int remotePort = decimal(line, dport + 7);
+        int replyPort = decimal(line, replySport + 7);
+        boolean loopback = line.startsWith("127.", replySrc + 5) || line.startsWith("::1 ", replySrc + 5);
+        boolean tor = loopback && replyPort == (proto == PROTO_TCP ? transPort : dnsPort);
+        redirected.put(key(proto, localPort, remote, remotePort), tor);
+    }
+
+    /**
+     * Parse a conntrack address, "a.b.c.d" or IPv6 text, into four host-order words
+     *
+     * @return address, null if it can't be parsed
+     */
+    private static int[] address(String line, int from, int to) {
+        int colon = line.indexOf(':', from);
+        if (colon < 0 || colon >= to) {
+            int value = 0;
+            int octets = 0;
+            int pos = from;
+            while (pos < to && octets < 4) {
+                int octet = decimal(line, pos);
+                value = (value << 8) | octet;
+                octets++;
+                while (pos < to && line.charAt(pos) != '.') pos++;
+                pos++;
+            }
+            return (octets == 4 ? new int[]{0, 0, 0xffff, value} : null);
+        }
+
+        int[] groups = new int[8];
+        int count = 0;
+        int gap = -1;
+        int pos = from;
+        while (pos < to) {
+            if (line.charAt(pos) == ':') {
+                if (pos + 1 < to && line.charAt(pos + 1) == ':') {
+                    if (gap >= 0) return null;
+                    gap = count;
+                    pos += 2;
+                } else {
+                    pos++;
+                }
+                continue;
+            }
+            if (count == 8) return null;
+            int end = pos;
+            while (end < to && line.charAt(end) != ':') {
+                // embedded IPv4 notation isn't used by conntrack
+                if (line.charAt(end) == '.') return null;
+                end++;
+            }
+            groups[count++] = (int) hex(line, pos, end);
+            pos = end;
+        }
+        if (gap >= 0) {
+            // "::" stands for the missing zero groups
+            int tail = count - gap;
+            System.arraycopy(groups, gap, groups, 8 - tail, tail);
+            for (int i = gap; i < 8 - tail; i++) groups[i] = 0;
+        } else if (count != 8) {
+            return null;
+        }
+
+        int[] words = new int[4];
+        for (int i = 0; i < 4; i++) {
+            words[i] = (groups[2 * i] << 16) | groups[2 * i + 1];
+        }
+        return words;
+    }
+
+    private static int decimal(String line, int pos) {
+        int value = 0;
+        for (int i = pos; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') break;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
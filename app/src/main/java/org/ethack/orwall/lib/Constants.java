@@ -7,6 +7,8 @@ public class Constants {
     public final static String SPECIAL_APPS_PREFIX = "orwall.special.";
     public final static String IPTABLES = "/system/bin/iptables";
     public final static String IP6TABLES = "/system/bin/ip6tables";
+    public final static String IPTABLES_SAVE = "/system/bin/iptables-save";
+    public final static String IPTABLES_RESTORE = "/system/bin/iptables-restore";
 
     public final static String ACTION = "org.ethack.orwall.backgroundProcess.action";
     public final static String ACTION_PORTAL = "org.ethack.orwall.backgroundProcess.action.portal";
@@ -21,9 +23,23 @@ public class Constants {
     public final static String PARAM_ONIONTYPE = "org.ethack.orwall.backgroundProcess.action.rule.onionType";
 
     public final static String ACTION_DISABLE_ORWALL = "org.ethack.orwall.backgroundProcess.action.disable_orwall";
+    public final static String ACTION_PAUSE_ORWALL = "org.ethack.orwall.backgroundProcess.action.pause_orwall";
     public final static String ACTION_ENABLE_ORWALL = "org.ethack.orwall.backgroundProcess.action.enable_orwall";
+    public final static String ACTION_RELOAD_ORWALL = "org.ethack.orwall.backgroundProcess.action.reload_orwall";
+    public final static String ACTION_CHECK_TOR = "org.ethack.orwall.backgroundProcess.action.check_tor";
+    public final static String ACTION_REFRESH_TOR = "org.ethack.orwall.backgroundProcess.action.refresh_tor";
+    public final static String ACTION_OPTIMIZE_RULES = "org.ethack.orwall.backgroundProcess.action.optimize_rules";
+    public final static String ACTION_RUN_SCHEDULE = "org.ethack.orwall.backgroundProcess.action.run_schedule";
+    public final static String ACTION_SCHEDULE_APPLIED = "org.ethack.orwall.backgroundProcess.action.schedule_applied";
+    public final static String ACTION_BOOT = "org.ethack.orwall.backgroundProcess.action.boot";
+    public final static String PARAM_BOOT_RECEIVED = "org.ethack.orwall.backgroundProcess.action.boot.received";
+    public final static String ACTION_BOOT_DONE = "org.ethack.orwall.backgroundProcess.action.boot_done";
+    public final static String ACTION_UPDATE_INIT_SCRIPT = "org.ethack.orwall.backgroundProcess.action.update_init_script";
+    public final static String ACTION_RECONCILE_PACKAGES = "org.ethack.orwall.backgroundProcess.action.reconcile_packages";
+    public final static String ACTION_SAVE_PROFILE = "org.ethack.orwall.backgroundProcess.action.save_profile";
+    public final static String ACTION_APPLY_PROFILE = "org.ethack.orwall.backgroundProcess.action.apply_profile";
+    public final static String PARAM_PROFILE = "org.ethack.orwall.backgroundProcess.action.profile";
 
-    public final static String E_NO_SUCH_FILE = "E_NO_SUCH_FILE";
     public final static String E_NO_SUCH_ALGO = "E_NO_SUCH_ALGO";
 
     public final static String DB_ONION_TYPE_NONE = "None";
@@ -0,0 +1,192 @@
+package org.ethack.orwall.lib;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import org.sufficientlysecure.rootcommands.util.CommandTrace;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compact snapshot of orWall state, for external tools: what is configured, what is installed,
+ * and how fast the shell answers. See DiagnosticsProvider.
+ */
+public class Diagnostics {
+    private final static String TAG = "Diagnostics";
+    private final static String[] TABLES = {"filter", "nat"};
+    private final static Pattern RULE = Pattern.compile("^(-t (\\S+) )?-([AI]) (ow_\\S+)");
+
+    /**
+     * @param context application context
+     * @return key/value pairs, in display order
+     */
+    public static Map<String, String> snapshot(Context context) {
+        Map<String, String> result = new LinkedHashMap<>();
+
+        try {
+            result.put("version", String.valueOf(context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode));
+        } catch (PackageManager.NameNotFoundException e) {
+            result.put("version", "unknown");
+        }
+        result.put("enabled", String.valueOf(Preferences.isOrwallEnabled(context)));
+        result.put("paused", String.valueOf(Preferences.isOrwallPaused(context)));
+        result.put("tor_down", String.valueOf(Preferences.isTorDown(context)));
+        result.put("profile", String.valueOf(Preferences.getCurrentProfile(context)));
+
+        List<AppRule> apps = new NatRules(context).getAllRules();
+        putRuleCounts(result, apps);
+
+        String lastApply = Preferences.getLastApply(context);
+        if (lastApply != null) {
+            String[] fields = lastApply.split(";");
+            result.put("apply.last_at", String.format(Locale.US, "%tFT%<tT", Long.valueOf(fields[0])));
+            result.put("apply.last_ms", fields[1]);
+        }
+        putShellLatency(result);
+
+        StatusProbe.Status status = StatusProbe.getCached();
+        if (status != null) {
+            result.put("capabilities", String.format(Locale.US,
+                    "root=%b;iptables=%b;init=%b;initialized=%b;comments=%b;orbot=%b;booted=%b",
+                    status.root, status.iptables, status.initSupported, status.initialized,
+                    status.comments, status.orbot, status.booted));
+        } else {
+            result.put("capabilities", "not probed");
+        }
+
+        result.put("lan", join(LanSet.get(context)));
+        result.put("tether", join(Preferences.getTetherInterfaces(context)));
+        result.put("init_script", String.valueOf(Preferences.getInitScriptDeployed(context)));
+        result.put("boot.marker", String.valueOf(Preferences.getBootMarker(context)));
+        result.put("annotations", String.valueOf(RuleAnnotations.get().size()));
+
+        // never prompt for su from a query: rely on the last probe
+        if (status != null && status.root) {
+            putRuleset(result, context, apps);
+        } else {
+            result.put("ruleset.hash", (status == null ? "not probed" : "no root"));
+        }
+        return result;
+    }
+
+    private static void putRuleCounts(Map<String, String> result, List<AppRule> apps) {
+        int tor = 0, bypass = 0, none = 0, localHost = 0, localNetwork = 0;
+        for (AppRule app : apps) {
+            if (Constants.DB_ONION_TYPE_TOR.equals(app.getOnionType())) {
+                tor++;
+            } else if (Constants.DB_ONION_TYPE_BYPASS.equals(app.getOnionType())) {
+                bypass++;
+            } else {
+                none++;
+            }
+            if (app.getLocalHost()) localHost++;
+            if (app.getLocalNetwork()) localNetwork++;
+        }
+        result.put("apps", String.valueOf(apps.size()));
+        result.put("apps.tor", String.valueOf(tor));
+        result.put("apps.bypass", String.valueOf(bypass));
+        result.put("apps.none", String.valueOf(none));
+        result.put("apps.localhost", String.valueOf(localHost));
+        result.put("apps.lan", String.valueOf(localNetwork));
+    }
+
+    private static void putShellLatency(Map<String, String> result) {
+        long[] durations = CommandTrace.getDurations();
+        result.put("shell.samples", String.valueOf(durations.length));
+        if (durations.length == 0) return;
+        Arrays.sort(durations);
+        result.put("shell.p50_ms", String.format(Locale.US, "%.1f", percentile(durations, 50) / 1e6));
+        result.put("shell.p90_ms", String.format(Locale.US, "%.1f", percentile(durations, 90) / 1e6));
+        result.put("shell.p99_ms", String.format(Locale.US, "%.1f", percentile(durations, 99) / 1e6));
+        result.put("shell.max_ms", String.format(Locale.US, "%.1f", durations[durations.length - 1] / 1e6));
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    /**
+     * Ruleset digest, and drift: chains whose installed rule count differs from the desired one
+     */
+    private static void putRuleset(Map<String, String> result, Context context, List<AppRule> apps) {
+        Iptables iptables = new Iptables(context);
+        try {
+            putRuleset(result, context, apps, iptables);
+        } finally {
+            iptables.close();
+        }
+    }
+
+    private static void putRuleset(Map<String, String> result, Context context, List<AppRule> apps, Iptables iptables) {
+        List<String> compiled = iptables.stripComments(iptables.compile(apps), false);
+        BootScript script = new BootScript(iptables.getOrbotUID(), compiled);
+        result.put("ruleset.rules", String.valueOf(compiled.size()));
+        result.put("ruleset.hash", script.getDigest());
+        result.put("ruleset.marker", script.getMarker());
+
+        if (!Preferences.isOrwallEnabled(context)) {
+            result.put("drift", "disabled");
+            return;
+        }
+
+        Map<String, Integer> desired = new TreeMap<>();
+        for (String rule : iptables.compileDesired(apps)) {
+            Matcher matcher = RULE.matcher(rule.trim());
+            if (matcher.find()) {
+                String chain = (matcher.group(2) == null ? "filter" : matcher.group(2)) + ":" + matcher.group(4);
+                desired.put(chain, (desired.containsKey(chain) ? desired.get(chain) : 0) + 1);
+            }
+        }
+
+        Map<String, Integer> installed = new TreeMap<>();
+        for (String table : TABLES) {
+            String listed = iptables.listRules(table);
+            if (listed == null) {
+                Log.e(TAG, "Unable to list " + table);
+                result.put("drift", "unknown");
+                return;
+            }
+            for (String line : listed.split("\n")) {
+                Matcher matcher = RULE.matcher(line.trim());
+                if (matcher.find()) {
+                    String chain = table + ":" + matcher.group(4);
+                    installed.put(chain, (installed.containsKey(chain) ? installed.get(chain) : 0) + 1);
+                }
+            }
+        }
+
+        StringBuilder drift = new StringBuilder();
+        Set<String> chains = new TreeSet<>(desired.keySet());
+        chains.addAll(installed.keySet());
+        for (String chain : chains) {
+            int want = (desired.containsKey(chain) ? desired.get(chain) : 0);
+            int have = (installed.containsKey(chain) ? installed.get(chain) : 0);
+            if (want != have) {
+                if (drift.length() > 0) drift.append(';');
+                drift.append(String.format(Locale.US, "%s=%d/%d", chain, want, have));
+            }
+        }
+        result.put("drift", (drift.length() == 0 ? "none" : drift.toString()));
+    }
+
+    private static String join(Set<String> values) {
+        if (values == null || values.isEmpty()) return "";
+        StringBuilder sb = new StringBuilder();
+        for (String value : new TreeSet<>(values)) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,270 @@
+package org.ethack.orwall.lib;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * TTL-aware, size-bounded LRU cache for DNS answers, with negative caching.
+ * <p/>
+ * Entries are keyed by question (name, type, class). Cached answers keep the wire format;
+ * TTLs are decremented when served, so that clients never get a record past its lifetime.
+ */
+public class DnsCache {
+
+    public final static int HEADER_SIZE = 12;
+
+    private final static int TYPE_SOA = 6;
+    private final static int TYPE_OPT = 41;
+    private final static int RCODE_NOERROR = 0;
+    private final static int RCODE_NXDOMAIN = 3;
+    // SOA rdata: two names (at least the root label each), then five 32-bit fields
+    private final static int SOA_MIN_RDLENGTH = 2 + 5 * 4;
+
+    // Tor DNSPort doesn't always send SOA records along with negative answers
+    private final static int DEFAULT_NEGATIVE_TTL = 60;
+    private final static int MAX_TTL = 3600;
+
+    private final Map<String, Entry> entries;
+    private long hits = 0;
+    private long misses = 0;
+
+    private static class Entry {
+        final byte[] response;
+        final long expires;
+        final long stored;
+
+        Entry(byte[] response, long stored, int ttl) {
+            this.response = response;
+            this.stored = stored;
+            this.expires = stored + ttl * 1000L;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxEntries maximum number of cached questions
+     */
+    public DnsCache(final int maxEntries) {
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    /**
+     * Get a cached answer, ready to be sent back.
+     *
+     * @param key query key, as returned by getKey()
+     * @param id  query ID the answer must carry
+     * @return response, or null if nothing valid is cached
+     */
+    public synchronized byte[] get(String key, int id) {
+        Entry entry = this.entries.get(key);
+        long now = now();
+        if (entry == null || entry.expires <= now) {
+            if (entry != null) this.entries.remove(key);
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        byte[] response = entry.response.clone();
+        setId(response, id);
+        rewriteTtl(response, (int) ((now - entry.stored) / 1000L));
+        return response;
+    }
+
+    /**
+     * Store an answer, if it may be cached.
+     *
+     * @param key      query key, as returned by getKey()
+     * @param response raw DNS answer
+     */
+    public synchronized void put(String key, byte[] response) {
+        int ttl = getTtl(response);
+        if (ttl <= 0) return;
+        this.entries.put(key, new Entry(response.clone(), now(), Math.min(ttl, MAX_TTL)));
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+
+    public static int getId(byte[] message) {
+        return ((message[0] & 0xFF) << 8) | (message[1] & 0xFF);
+    }
+
+    public static void setId(byte[] message, int id) {
+        message[0] = (byte) ((id >> 8) & 0xFF);
+        message[1] = (byte) (id & 0xFF);
+    }
+
+    private static int getShort(byte[] message, int pos) {
+        return ((message[pos] & 0xFF) << 8) | (message[pos + 1] & 0xFF);
+    }
+
+    private static long getInt(byte[] message, int pos) {
+        return ((long) getShort(message, pos) << 16) | getShort(message, pos + 2);
+    }
+
+    private static void setInt(byte[] message, int pos, long value) {
+        message[pos] = (byte) ((value >> 24) & 0xFF);
+        message[pos + 1] = (byte) ((value >> 16) & 0xFF);
+        message[pos + 2] = (byte) ((value >> 8) & 0xFF);
+        message[pos + 3] = (byte) (value & 0xFF);
+    }
+
+    /**
+     * Skip an encoded name, compression pointers included.
+     *
+     * @return position right after the name, or -1 if malformed
+     */
+    private static int skipName(byte[] message, int length, int pos) {
+        while (pos < length) {
+            int len = message[pos] & 0xFF;
+            if (len == 0) return pos + 1;
+            if ((len & 0xC0) == 0xC0) return (pos + 2 <= length ? pos + 2 : -1);
+            pos += len + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Build the cache key of a standard query with a single question.
+     *
+     * @param message raw DNS query
+     * @param length  query length
+     * @return key, or null if this query must not be cached
+     */
+    public static String getKey(byte[] message, int length) {
+        if (length < HEADER_SIZE) return null;
+        int flags = getShort(message, 2);
+        // QR must be 0 (query), OPCODE 0 (standard query)
+        if ((flags & 0xF800) != 0) return null;
+        if (getShort(message, 4) != 1) return null;
+
+        StringBuilder name = new StringBuilder();
+        int pos = HEADER_SIZE;
+        while (true) {
+            if (pos >= length) return null;
+            int len = message[pos] & 0xFF;
+            if (len == 0) break;
+            // no compression expected in a question
+            if ((len & 0xC0) != 0 || pos + len + 1 > length) return null;
+            for (int i = pos + 1; i <= pos + len; i++) {
+                name.append((char) (message[i] & 0xFF));
+            }
+            name.append('.');
+            pos += len + 1;
+        }
+        pos++;
+        if (pos + 4 > length) return null;
+
+        return String.format(Locale.US, "%s/%d/%d",
+                name.toString().toLowerCase(Locale.US), getShort(message, pos), getShort(message, pos + 2));
+    }
+
+    /**
+     * Compute how long an answer may be cached: lowest record TTL for positive answers,
+     * SOA minimum for negative ones (NXDOMAIN or no data).
+     *
+     * @param message raw DNS answer
+     * @return TTL in seconds, 0 if this answer must not be cached
+     */
+    public static int getTtl(byte[] message) {
+        int length = message.length;
+        if (length < HEADER_SIZE) return 0;
+        int flags = getShort(message, 2);
+        // truncated answers are retried over TCP — don't keep them
+        if ((flags & 0x0200) != 0) return 0;
+        int rcode = flags & 0x000F;
+        if (rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN) return 0;
+
+        int qdcount = getShort(message, 4);
+        int ancount = getShort(message, 6);
+        int nscount = getShort(message, 8);
+
+        int pos = HEADER_SIZE;
+        for (int i = 0; i < qdcount; i++) {
+            pos = skipName(message, length, pos);
+            if (pos < 0 || pos + 4 > length) return 0;
+            pos += 4;
+        }
+
+        long ttl = Long.MAX_VALUE;
+        long negative = -1;
+        for (int i = 0; i < ancount + nscount; i++) {
+            pos = skipName(message, length, pos);
+            if (pos < 0 || pos + 10 > length) return 0;
+            int type = getShort(message, pos);
+            long recordTtl = getInt(message, pos + 4);
+            int rdlength = getShort(message, pos + 8);
+            int rdata = pos + 10;
+            if (rdata + rdlength > length) return 0;
+
+            if (i < ancount) {
+                ttl = Math.min(ttl, recordTtl);
+            } else if (type == TYPE_SOA && rdlength >= SOA_MIN_RDLENGTH) {
+                // MINIMUM is the last field of SOA rdata
+                long minimum = getInt(message, rdata + rdlength - 4);
+                negative = Math.min(recordTtl, minimum);
+            }
+            pos = rdata + rdlength;
+        }
+
+        if (rcode == RCODE_NXDOMAIN || ancount == 0) {
+            return (int) (negative >= 0 ? negative : DEFAULT_NEGATIVE_TTL);
+        }
+        return (int) Math.min(ttl, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Decrement record TTLs by the time an answer spent in cache.
+     *
+     * @param message raw DNS answer, modified in place
+     * @param elapsed seconds spent in cache
+     */
+    public static void rewriteTtl(byte[] message, int elapsed) {
+        if (elapsed <= 0) return;
+        int length = message.length;
+        int qdcount = getShort(message, 4);
+        int records = getShort(message, 6) + getShort(message, 8) + getShort(message, 10);
+
+        int pos = HEADER_SIZE;
+        for (int i = 0; i < qdcount; i++) {
+            pos = skipName(message, length, pos);
+            if (pos < 0 || pos + 4 > length) return;
+            pos += 4;
+        }
+        for (int i = 0; i < records; i++) {
+            pos = skipName(message, length, pos);
+            if (pos < 0 || pos + 10 > length) return;
+            int type = getShort(message, pos);
+            // OPT pseudo-record uses the TTL field for flags
+            if (type != TYPE_OPT) {
+                long ttl = getInt(message, pos + 4);
+                setInt(message, pos + 4, Math.max(0, ttl - elapsed));
+            }
+            pos += 10 + getShort(message, pos + 8);
+        }
+    }
+}
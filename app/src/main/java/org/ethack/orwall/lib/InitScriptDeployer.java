@@ -0,0 +1,143 @@
+package org.ethack.orwall.lib;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Deploys the init-script to every supported location at once: one root shell, one
+ * /system remount, and an atomic rename per target.
+ * What was deployed is remembered (app version and script digest), so that nothing is
+ * touched, nor even read, when it didn't change.
+ */
+public class InitScriptDeployer {
+    private final static String TAG = "InitScriptDeployer";
+
+    /**
+     * @return init-script locations on this device
+     */
+    public static List<String> getTargets() {
+        List<String> targets = new ArrayList<>();
+        if (new File(Iptables.DIR_DST).exists()) {
+            targets.add(Iptables.DST_FILE);
+        }
+        if (new File(Iptables.DIR_DST_1).exists()) {
+            targets.add(Iptables.DST_FILE_1);
+        }
+        return targets;
+    }
+
+    private static String getDeployKey(Context context, String digest) {
+        int version = 0;
+        try {
+            version = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e(TAG, "Unable to get app version");
+        }
+        return String.format(Locale.US, "%d:%s", version, digest);
+    }
+
+    /**
+     * @param context application context
+     * @param digest  script digest
+     * @return true if this exact script is already in place
+     */
+    public static boolean isDeployed(Context context, String digest) {
+        if (!getDeployKey(context, digest).equals(Preferences.getInitScriptDeployed(context))) {
+            return false;
+        }
+        // cheap check against external removal
+        for (String target : getTargets()) {
+            if (!new File(target).exists()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copy the script to all targets
+     * @param context application context
+     * @param src     generated script
+     * @param digest  script digest
+     * @return true if success
+     */
+    public static boolean deploy(Context context, File src, String digest) {
+        if (isDeployed(context, digest)) return true;
+
+        List<String> cmds = new ArrayList<>();
+        for (String target : getTargets()) {
+            // temp file on the same filesystem, so that the script is never seen half-written
+            cmds.add(String.format("cat %s > %s.tmp && chmod 0755 %s.tmp && mv %s.tmp %s",
+                    src.getAbsolutePath(), target, target, target, target));
+        }
+        if (cmds.isEmpty()) return false;
+        if (!runBatch(TextUtils.join(" && ", cmds))) {
+            Preferences.setInitScriptDeployed(context, null);
+            return false;
+        }
+        Preferences.setInitScriptDeployed(context, getDeployKey(context, digest));
+        return true;
+    }
+
+    /**
+     * Remove the script from all targets. /system isn't remounted when there's nothing to remove.
+     * @param context application context
+     * @return true if success
+     */
+    public static boolean remove(Context context) {
+        Preferences.setInitScriptDeployed(context, null);
+
+        List<String> existing = new ArrayList<>();
+        for (String target : new String[]{Iptables.DST_FILE, Iptables.DST_FILE_1}) {
+            if (new File(target).exists()) existing.add(target);
+        }
+        if (existing.isEmpty()) return true;
+        return runBatch("rm -f " + TextUtils.join(" ", existing));
+    }
+
+    /**
+     * Run some commands with /system writable, in a single root shell.
+     * /system goes back read-only whatever happens.
+     */
+    private static boolean runBatch(final String commands) {
+        Shell shell;
+        try {
+            shell = Shell.startRootShell();
+        } catch (IOException e) {
+            Log.e("Shell", "Unable to get shell");
+            return false;
+        }
+
+        // subshell: exit must not end the root shell
+        SimpleCommand command = new SimpleCommand(String.format(
+                "(mount -o remount,rw /system; (%s); status=$?; mount -o remount,ro /system; exit $status)", commands));
+        try {
+            shell.add(command).waitForFinish();
+            if (command.getExitCode() != 0) {
+                Log.e(TAG, "Deployment failed: " + command.getOutput());
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e("Shell", "Unable to run simple command");
+        } catch (TimeoutException e) {
+            Log.e("Shell", "A timeout was reached");
+        } finally {
+            try {
+                shell.close();
+            } catch (IOException e) {
+            }
+        }
+        return false;
+    }
+}
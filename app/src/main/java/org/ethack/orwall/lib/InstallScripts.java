@@ -1,84 +1,158 @@
 package org.ethack.orwall.lib;
 
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.util.Log;
 
 import org.ethack.orwall.R;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by cedric on 7/25/14.
+ *
+ * Extracts helper scripts from raw resources, in the background.
+ * Nothing is read nor written if the app version didn't change and scripts are there;
+ * on a new version, only scripts with a new content are written.
  */
 public class InstallScripts extends Thread {
+    private final static int[] RESOURCES = {R.raw.activate_portal, R.raw.deactivate_portal};
+    private final static String[] FILES = {"activate_portal.sh", "deactivate_portal.sh"};
+
+    private static CountDownLatch done = null;
+    private static volatile boolean extracted = false;
+
     private final Context context;
+    private final CountDownLatch latch;
 
-    public InstallScripts(Context context) {
-        this.context = context;
+    private InstallScripts(Context context, CountDownLatch latch) {
+        this.context = context.getApplicationContext();
+        this.latch = latch;
     }
 
     /**
-     * Thanks to AFWall :)
+     * Extract scripts in the background, once per process.
+     * A failed extraction is tried again on next call.
      *
-     * @param ctx
-     * @param resId
-     * @param filename
-     * @return
+     * @param context any context
      */
-    private static boolean installBinary(Context ctx, int resId, String filename) {
+    public static synchronized void extract(Context context) {
+        if (done != null) return;
+        done = new CountDownLatch(1);
+        new InstallScripts(context, done).start();
+    }
+
+    /**
+     * Wait for scripts to be extracted. Starts extraction if needed.
+     *
+     * @param context any context
+     * @param timeout maximum wait, in seconds
+     * @return true if scripts are ready
+     */
+    public static boolean await(Context context, long timeout) {
+        CountDownLatch latch;
+        synchronized (InstallScripts.class) {
+            extract(context);
+            latch = done;
+        }
         try {
-            File f = new File(ctx.getDir("bin", 0), filename);
-            if (f.exists()) {
-                f.delete();
-            }
-            copyRawFile(ctx, resId, f, "0755");
-            return true;
-        } catch (Exception e) {
-            Log.e("InstallScripts", "installBinary failed: " + e.getLocalizedMessage());
+            return latch.await(timeout, TimeUnit.SECONDS) && extracted;
+        } catch (InterruptedException e) {
             return false;
         }
     }
 
+    private int getVersion() {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0;
+        }
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte buf[] = new byte[8192];
+            int len;
+            while ((len = is.read(buf)) > 0) {
+                out.write(buf, 0, len);
+            }
+        } finally {
+            is.close();
+        }
+        return out.toByteArray();
+    }
+
     /**
-     * Copies a raw resource file, given its ID to the given location
+     * Write a raw resource to some file, if its content differs, and make it executable
      *
-     * @param ctx   context
-     * @param resid resource id
-     * @param file  destination file
-     * @param mode  file permissions (E.g.: "755")
-     * @throws java.io.IOException  on error
-     * @throws InterruptedException when interrupted
-     *                              <p/>
-     *                              Thanks AFWall source code
+     * @param resId    resource id
+     * @param filename destination, in app bin directory
+     * @return true if success
      */
-    private static void copyRawFile(Context ctx, int resid, File file, String mode) throws IOException, InterruptedException {
-        final String abspath = file.getAbsolutePath();
-        final FileOutputStream out = new FileOutputStream(file);
-        final InputStream is = ctx.getResources().openRawResource(resid);
-        byte buf[] = new byte[1024];
-        int len;
-        while ((len = is.read(buf)) > 0) {
-            out.write(buf, 0, len);
+    private boolean installBinary(int resId, String filename) {
+        File file = new File(context.getDir("bin", 0), filename);
+        try {
+            byte[] content = readAll(context.getResources().openRawResource(resId));
+            if (!file.exists() || !Arrays.equals(content, readAll(new FileInputStream(file)))) {
+                FileOutputStream out = new FileOutputStream(file);
+                try {
+                    out.write(content);
+                } finally {
+                    out.close();
+                }
+            }
+            // 0755, without forking chmod
+            return file.setReadable(true, false) && file.setExecutable(true, false) && file.setWritable(true, true);
+        } catch (IOException e) {
+            Log.e("InstallScripts", "installBinary failed: " + e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    private boolean isExtracted() {
+        if (Preferences.getScriptsVersion(context) != getVersion()) return false;
+        for (String filename : FILES) {
+            if (!new File(context.getDir("bin", 0), filename).canExecute()) return false;
         }
-        out.close();
-        is.close();
-        // Change the permissions
-        Runtime.getRuntime().exec("chmod " + mode + " " + abspath).waitFor();
+        return true;
     }
 
     @Override
     public void run() {
-        if (!installBinary(context, R.raw.activate_portal, "activate_portal.sh")) {
-            Log.e("Init", "Unable to install activate_portal script");
-        }
-        if (!installBinary(context, R.raw.deactivate_portal, "deactivate_portal.sh")) {
-            Log.e("Init", "Unable to install deactivate_portal script");
-        }
-        if (!installBinary(context, R.raw.userinit, "userinit.sh")) {
-            Log.e("Init", "We're fucked… unable to extract userinit.sh script");
+        boolean success = true;
+        try {
+            if (isExtracted()) return;
+
+            for (int i = 0; i < RESOURCES.length; i++) {
+                if (!installBinary(RESOURCES[i], FILES[i])) {
+                    Log.e("Init", "Unable to install " + FILES[i]);
+                    success = false;
+                }
+            }
+            // userinit.sh is generated from the ruleset, see BootScript
+            if (success) {
+                Preferences.setScriptsVersion(context, getVersion());
+            }
+        } catch (RuntimeException e) {
+            Log.e("InstallScripts", "Extraction failed: " + e.getLocalizedMessage());
+            success = false;
+        } finally {
+            synchronized (InstallScripts.class) {
+                extracted = success;
+                // let the next extract() call try again
+                if (!success && done == latch) done = null;
+                latch.countDown();
+            }
         }
     }
 }
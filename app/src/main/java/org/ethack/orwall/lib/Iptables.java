@@ -4,19 +4,27 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.os.SystemClock;
 
 import android.util.Log;
 
 import org.ethack.orwall.BackgroundProcess;
+import org.ethack.orwall.DnsForwarder;
 import org.sufficientlysecure.rootcommands.Shell;
 import org.sufficientlysecure.rootcommands.command.SimpleCommand;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Iptables {
     public final static String DIR_DST = "/system/etc/init.d";
@@ -24,9 +32,26 @@ public class Iptables {
     public final static String DIR_DST_1 = "/data/local/userinit.d/";
     public final static String DST_FILE_1 = String.format("%s/91firewall", DIR_DST_1);
 
+    // first rule of ow_OUTPUT and ow_INPUT is the established fast path: head inserts go below it
+    private final static int HEAD_POSITION = 2;
+    private final static Pattern HEAD_INSERT = Pattern.compile("^-I (ow_OUTPUT|ow_INPUT) (?![0-9])");
+    // bypass rules for pause(), above the fast path
+    private final static String[] PAUSE_RULES = {
+            "-%c ow_OUTPUT%s -j ACCEPT",
+            "-%c ow_INPUT%s -j ACCEPT",
+            "-t nat -%c ow_OUTPUT%s -j ACCEPT",
+    };
+    private final static Pattern CHECK = Pattern.compile("^(-t \\S+ )?-C ");
+    private final static Pattern LOCK_DELETE = Pattern.compile("^-D (OUTPUT|INPUT) -j ow_\\w+_LOCK$");
+    // REJECT rate: above it, packets fall down to the DROP policy
+    private final static String REJECT_LIMIT = "-m limit --limit 20/s --limit-burst 50";
+
     private Context context;
     private Boolean _supportComment;
     private Boolean _supportWait;
+    private Boolean _commentSideTable;
+    // when set, rules are recorded instead of applied, see reapply()
+    private ArrayList<String> recording;
     private Integer _orbotUID;
     private Shell shell = null;
 
@@ -51,6 +76,12 @@ public class Iptables {
         return _supportWait;
     }
 
+    public boolean getCommentSideTable(){
+        if (_commentSideTable == null)
+            _commentSideTable = Preferences.isCommentSideTable(context);
+        return _commentSideTable;
+    }
+
     public int getOrbotUID(){
         if (_orbotUID == null)
             _orbotUID = Util.getOrbotUID(context);
@@ -62,12 +93,17 @@ public class Iptables {
     }
 
     /**
-     * run a simple command
+     * Port DNS queries are redirected to: the local cache if enabled, Orbot DNSPort otherwise.
      *
-     * @param command
-     * @return true if success
+     * @return port number
      */
-    private boolean runCommand(final String command) {
+    public long getDNSTarget(){
+        if (Preferences.isDNSCacheEnabled(context))
+            return Long.valueOf(Preferences.getDNSCachePort(context));
+        return Long.valueOf(Preferences.getDNSPort(context));
+    }
+
+    private Shell getShell() {
         if (shell == null){
             try {
                 shell = Shell.startRootShell();
@@ -75,15 +111,104 @@ public class Iptables {
                 Log.e("Shell", "NO shell !");
             }
         }
+        return shell;
+    }
 
-        if (this.shell != null) {
+    /**
+     * Close the root shell, if any. The instance stays usable: a new shell is started on demand.
+     */
+    public void close() {
+        if (shell != null) {
+            try {
+                shell.close();
+            } catch (IOException e) {
+                Log.e("Shell", "Unable to close shell");
+            }
+            shell = null;
+        }
+    }
+
+    /**
+     * run a simple command, and get its output
+     *
+     * @param command
+     * @return command output, null on failure
+     */
+    private String runCommandForOutput(final String command) {
+        if (getShell() != null) {
+            SimpleCommand cmd = new SimpleCommand(command);
+            try {
+                this.shell.add(cmd).waitForFinish();
+                return (cmd.getExitCode() == 0 ? cmd.getOutput() : null);
+            } catch (IOException e) {
+                Log.e("Shell", "Unable to run simple command: " + command);
+                Log.e("Trace", e.getMessage());
+            } catch (TimeoutException e) {
+                Log.e("Shell", "A timeout was reached");
+                Log.e("Shell", e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Dump current IPv4 rules, with their counters
+     *
+     * @return iptables-save output, null on failure
+     */
+    public String save() {
+        return runCommandForOutput(String.format("%s -c", Constants.IPTABLES_SAVE));
+    }
+
+    /**
+     * Read, and remove, boot timeline marks left by the init-script
+     *
+     * @return marks, as "phase uptime" lines, null if there are none
+     */
+    public String popBootMarks() {
+        String marks = runCommandForOutput(String.format("cat %s", BootTimeline.MARKS_FILE));
+        runCommand(String.format("rm -f %s", BootTimeline.MARKS_FILE));
+        return marks;
+    }
+
+    /**
+     * Apply an iptables-restore payload on top of current rules. Each table is committed at once.
+     *
+     * @param payload rules, in iptables-save format
+     * @return true if success
+     */
+    public boolean restore(final String payload) {
+        File file = new File(context.getCacheDir(), "orwall.rules");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(payload.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e("restore", "Unable to write rules file");
+            return false;
+        }
+        boolean result = runCommand(String.format("%s -c --noflush < %s", Constants.IPTABLES_RESTORE, file.getAbsolutePath()));
+        file.delete();
+        return result;
+    }
+
+    /**
+     * run a simple command
+     *
+     * @param command
+     * @return true if success
+     */
+    private boolean runCommand(final String command) {
+        if (getShell() != null) {
             SimpleCommand cmd = new SimpleCommand(command);
             try {
                 this.shell.add(cmd).waitForFinish();
                 return (cmd.getExitCode() == 0);
             } catch (IOException e) {
-                Log.e("Shell", "Unable to run simple command");
-                Log.e("Shell", command);
+                Log.e("Shell", "Unable to run simple command: " + command);
                 Log.e("Trace", e.getMessage());
             } catch (TimeoutException e) {
                 Log.e("Shell", "A timeout was reached");
@@ -96,36 +221,45 @@ public class Iptables {
     /**
      * This method is called upon device boot, or when we re-enable orWall
      * It adds new chains, and some rules in order to get iptables up n'running.
+     * A paused orWall stays paused: bypass rules are put back on the new chains.
      */
     public void boot() {
-        Log.d("Boot: ", "Deactivate some stuff at boot time in order to prevent crashes");
-        Preferences.setBrowserEnabled(context, false);
-        Preferences.setOrwallEnabled(context, true);
+        // bypass rules don't survive a reboot nor a teardown
+        boolean paused = Preferences.isOrwallPaused(context);
+        Preferences.setOrwallPaused(context, false);
+
+        if (isBootScriptApplied()) {
+            bootFromScript();
+        } else if (haveBooted()) {
+            // chains from an outdated init-script: swap the current ruleset in
+            bootOverScript();
+        } else {
+            init();
+        }
+        if (paused) {
+            pause();
+        }
+    }
+
+    /**
+     * Build all chains from scratch
+     */
+    private void init() {
+        prepare();
 
         // initialize main chains
         initIPv6();
         initOutputs();
         initInput();
+        // boot lock removal is marked as it happens, see genericRule()
+        BootTimeline.mark(BootTimeline.CHAINS_INIT);
 
-        // get lan subnet
+        // get lan subnets — chains are brand new, nothing is installed yet
+        NetworkSnapshot.refresh(context);
+        LanSet.clear(context);
         LANPolicy();
 
-
-        if (Preferences.isSIPEnabled(this.context)) {
-            Long sip_uid = Long.valueOf(Preferences.getSIPApp(this.context));
-            if (sip_uid != 0) {
-                Log.d("Boot", "Authorizing SIP");
-                manageSip(true, sip_uid);
-            }
-        }
-
-        if (Preferences.isADBEnabled(context)) {
-            enableADB(true);
-        }
-
-        if (Preferences.isSSHEnabled(context)) {
-            enableSSH(true);
-        }
+        specialRules();
 
         Log.d("Boot: ", "Finished initialization");
 
@@ -143,6 +277,477 @@ public class Iptables {
             Log.d("Boot: ", "pushed new app in queue: " + rule.getPkgName());
         }
         Log.d("Boot: ", "Finished NAT stuff");
+        // queued after app rules: closes the boot timeline
+        Intent done = new Intent(this.context, BackgroundProcess.class);
+        done.putExtra(Constants.ACTION, Constants.ACTION_BOOT_DONE);
+        this.context.startService(done);
+
+        // chains are brand new: no fast-fail rule yet
+        Preferences.setTorDown(context, false);
+        schedule();
+    }
+
+    /**
+     * Checks if the init-script already applied the current ruleset.
+     * @return true if its witness chain is there.
+     */
+    public boolean isBootScriptApplied() {
+        String marker = Preferences.getBootMarker(context);
+        return marker != null && haveBooted() && genericRule("-S " + marker);
+    }
+
+    /**
+     * Boot when the init-script did the job: only what depends on the app and the network.
+     */
+    private void bootFromScript() {
+        Log.d("Boot: ", "Rules applied by init-script");
+        prepare();
+        initIPv6();
+        NetworkSnapshot.refresh(context);
+        LanSet.clear(context);
+        LANPolicy();
+        // the script has no fast-fail rule
+        Preferences.setTorDown(context, false);
+        schedule();
+        BootTimeline.end(context);
+    }
+
+    /**
+     * Boot when the init-script loaded another ruleset: it is replaced at once, like on reapply().
+     */
+    private void bootOverScript() {
+        Log.d("Boot: ", "Replacing rules applied by init-script");
+        // the script has no LAN, tethering, nor fast-fail rule
+        LanSet.clear(context);
+        Preferences.setTetherInterfaces(context, null);
+        Preferences.setTorDown(context, false);
+        reapply();
+        BootTimeline.end(context);
+    }
+
+    /**
+     * Re-apply the whole ruleset on a running orWall, without any gap.
+     * The new ruleset is built into shadow chains (ow_OUTPUT_next...), then the jumps from
+     * built-in chains are swapped, and old chains are removed.
+     */
+    public void reapply() {
+        if (!haveBooted()) {
+            boot();
+            return;
+        }
+
+        NatRules natRules = new NatRules(context);
+        if (!applyCompiled(compile(natRules.getAllRules()))) {
+            Log.e("reapply", "Falling back to a full reload");
+            reload();
+        }
+    }
+
+    /**
+     * Tear everything down and boot again, keeping orWall paused if it was.
+     */
+    public void reload() {
+        boolean paused = Preferences.isOrwallPaused(context);
+        deactivate();
+        if (paused) {
+            Preferences.setOrwallPaused(context, true);
+        }
+        boot();
+    }
+
+    /**
+     * Build the complete ruleset for some app rules, without applying it.
+     * Rules depending on current network and state are not part of it, see compileState().
+     * @param apps app rules
+     * @return rules, as passed to iptables, in order
+     */
+    public ArrayList<String> compile(final List<AppRule> apps) {
+        ArrayList<String> recorded;
+        recording = new ArrayList<>();
+        try {
+            initOutputs();
+            initInput();
+            specialRules();
+            for (AppRule rule : apps) {
+                appRule(true, rule.getAppUID(), rule.getPkgName(), rule.getOnionType(), rule.getLocalHost(), rule.getLocalNetwork());
+            }
+        } finally {
+            recorded = recording;
+            recording = null;
+        }
+        return recorded;
+    }
+
+    /**
+     * Build what should be installed right now: the compiled ruleset, plus rules depending on
+     * current network and state (LAN, tethering, Tor down, pause).
+     * @param apps app rules
+     * @return rules, as passed to iptables, in order
+     */
+    public ArrayList<String> compileDesired(final List<AppRule> apps) {
+        ArrayList<String> desired = compile(apps);
+        desired.addAll(compileState());
+        return desired;
+    }
+
+    /**
+     * Build rules depending on current network and state, on top of a compiled ruleset.
+     * LAN subnets are the ones LanSet knows as installed, so that it stays in sync.
+     * @return rules, as passed to iptables, in order
+     */
+    private ArrayList<String> compileState() {
+        ArrayList<String> recorded;
+        recording = new ArrayList<>();
+        try {
+            for (String subnet : LanSet.get(context)) {
+                LanNoNat(subnet, true);
+            }
+            Set<String> tethered = Preferences.getTetherInterfaces(context);
+            if (tethered != null) {
+                for (String intf : tethered) {
+                    tether(true, intf);
+                }
+            }
+            if (Preferences.isTorDown(context)) {
+                torDown(true);
+            }
+            if (Preferences.isOrwallPaused(context)) {
+                for (String rule : PAUSE_RULES) {
+                    genericRule(String.format(rule, 'I', " 1"));
+                }
+            }
+        } finally {
+            recorded = recording;
+            recording = null;
+        }
+        return recorded;
+    }
+
+    /**
+     * Turn recorded rules into what the kernel gets: comments go away if they are kept in
+     * the side table.
+     * @param rules  recorded rules
+     * @param record true if rules are being applied, so that RuleAnnotations tracks their comments
+     * @return rules, as passed to iptables
+     */
+    public ArrayList<String> stripComments(final List<String> rules, final boolean record) {
+        ArrayList<String> stripped = new ArrayList<>(rules.size());
+        if (!getCommentSideTable()) {
+            stripped.addAll(rules);
+            return stripped;
+        }
+        for (String rule : rules) {
+            stripped.add(RuleAnnotations.strip(rule, record));
+        }
+        return stripped;
+    }
+
+    /**
+     * Everything a compiled ruleset depends on, besides app rules.
+     * A compiled ruleset with another fingerprint must be compiled again.
+     * @return fingerprint
+     */
+    public String getFingerprint() {
+        return String.format(Locale.US,
+                "orbot=%d;orwall=%d;trans=%s;dns=%d;reject=%b;comments=%b;sidetable=%b;sip=%s;adb=%b;ssh=%b",
+                getOrbotUID(), context.getApplicationInfo().uid,
+                Preferences.getTransPort(context), getDNSTarget(),
+                Preferences.isRejectEnabled(context), getSupportComment(), getCommentSideTable(),
+                (Preferences.isSIPEnabled(context) ? Preferences.getSIPApp(context) : "0"),
+                Preferences.isADBEnabled(context), Preferences.isSSHEnabled(context)
+        );
+    }
+
+    /**
+     * Apply a compiled ruleset at once, through shadow chains.
+     * Network and state dependent rules (LAN, tethering, Tor down, pause) are loaded along with it,
+     * so that nothing is missing once the jumps are swapped.
+     * @param compiled ruleset, from compile()
+     * @return false if shadow chains couldn't be loaded or swapped in. A full reload is then needed.
+     */
+    public boolean applyCompiled(final List<String> compiled) {
+        long start = SystemClock.elapsedRealtime();
+        boolean booted = haveBooted();
+        prepare();
+        if (!booted) {
+            initIPv6();
+            // no orWall chain, no LAN rule
+            LanSet.clear(context);
+        }
+
+        ArrayList<String> desired = new ArrayList<>(compiled);
+        desired.addAll(compileState());
+        // the whole ruleset is replaced, and so are its annotations
+        RuleAnnotations.clear();
+        ShadowChains shadowChains = new ShadowChains(stripComments(desired, true));
+        String payload = shadowChains.toRestore();
+        if (!restore(payload)) {
+            Log.e("applyCompiled", "Unable to load shadow chains: " + payload);
+            dropShadowChains(shadowChains);
+            return false;
+        }
+        for (String table : shadowChains.getTables()) {
+            if (!swapChains(table, shadowChains)) {
+                dropShadowChains(shadowChains);
+                return false;
+            }
+        }
+        if (!booted) {
+            // policies and boot lock removal
+            for (String rule : shadowChains.getBuiltinRules()) {
+                if (!genericRule(rule)) {
+                    Log.e("applyCompiled", "Unable to apply rule: " + rule);
+                }
+            }
+        }
+
+        // subnets may have changed since they were recorded: only the differences
+        NetworkSnapshot.refresh(context);
+        LANPolicy();
+
+        schedule();
+        Preferences.setLastApply(context, String.format(Locale.US, "%d;%d",
+                System.currentTimeMillis(), SystemClock.elapsedRealtime() - start));
+        return true;
+    }
+
+    /**
+     * Let all traffic through, while keeping every orWall chain in place:
+     * a single bypass rule goes at the top of each orWall entry chain.
+     */
+    public void pause() {
+        if (!haveBooted()) return;
+
+        if (!isPaused()) {
+            for (String rule : PAUSE_RULES) {
+                if (!genericRule(String.format(rule, 'I', " 1"))) {
+                    Log.e("pause", "Unable to apply rule: " + String.format(rule, 'I', " 1"));
+                }
+            }
+        }
+        deactivateV6();
+        Preferences.setOrwallPaused(context, true);
+        Preferences.setOrwallEnabled(context, false);
+    }
+
+    /**
+     * Remove the bypass rules set by pause(), and make sure services and alarms run.
+     * Boots if chains aren't there.
+     */
+    public void resume() {
+        if (!haveBooted()) {
+            Preferences.setOrwallPaused(context, false);
+            reapply();
+            return;
+        }
+
+        startServices();
+        initIPv6();
+        // LAN may have changed while we weren't looking
+        NetworkSnapshot.refresh(context);
+        LANPolicy();
+        if (isPaused()) {
+            for (String rule : PAUSE_RULES) {
+                if (!genericRule(String.format(rule, 'D', ""))) {
+                    Log.e("resume", "Unable to remove rule: " + String.format(rule, 'D', ""));
+                }
+            }
+            // flows opened while paused went around Tor, and the fast path would keep them going
+            flushConntrack();
+        }
+        Preferences.setOrwallEnabled(context, true);
+        Preferences.setOrwallPaused(context, false);
+        schedule();
+    }
+
+    /**
+     * Forget tracked connections, so that every flow goes through per-app rules again.
+     * The RELATED,ESTABLISHED fast path sits above them: without this, a flow accepted by a
+     * bypass (pause, browser grant) stays accepted for as long as it lives.
+     * Established connections break, and get opened again through the current rules.
+     * @return false if conntrack couldn't be flushed
+     */
+    public boolean flushConntrack() {
+        // conntrack isn't shipped with Android; older kernels take a flush through procfs
+        boolean flushed = runCommand("conntrack -F 2>/dev/null || echo f > /proc/net/nf_conntrack");
+        if (!flushed) {
+            Log.e("flushConntrack", "Unable to flush conntrack");
+        }
+        return flushed;
+    }
+
+    /**
+     * Full teardown: no orWall chain, no service, nothing left paused.
+     */
+    public void stop() {
+        deactivate();
+        deactivateV6();
+        Preferences.setOrwallEnabled(context, false);
+    }
+
+    public boolean isPaused() {
+        return genericRule(String.format(PAUSE_RULES[0], 'C', ""));
+    }
+
+    /**
+     * @param table iptables table
+     * @return current rules of this table, as shown by iptables -S, null on failure
+     */
+    public String listRules(final String table) {
+        return runCommandForOutput(String.format((getSupportWait()) ? "%s -w -t %s -S" : "%s -t %s -S", Constants.IPTABLES, table));
+    }
+
+    /**
+     * Point built-in chains to shadow chains, drop old chains, and give shadow chains their final name.
+     * @param table iptables table
+     * @param shadow loaded shadow chains
+     * @return false if jumps or names couldn't be switched
+     */
+    private boolean swapChains(final String table, final ShadowChains shadow) {
+        String listed = listRules(table);
+        if (listed == null) {
+            Log.e("swapChains", "Unable to list " + table);
+            return false;
+        }
+        ArrayList<String> jumps = new ArrayList<>();
+        ArrayList<String> cleanup = new ArrayList<>();
+        ArrayList<String> renames = new ArrayList<>();
+        ArrayList<String> old = new ArrayList<>();
+        Map<String, Integer> positions = new HashMap<>();
+        ArrayList<String> stale = new ArrayList<>();
+        for (String line : listed.split("\n")) {
+            String[] tokens = line.trim().split(" ");
+            if (tokens.length == 2 && tokens[0].equals("-N") && tokens[1].startsWith("ow_")
+                    && !tokens[1].endsWith(ShadowChains.SUFFIX) && !tokens[1].endsWith("_LOCK")) {
+                old.add(tokens[1]);
+            } else if (tokens.length > 1 && tokens[0].equals("-A") && tokens[1].equals(tokens[1].toUpperCase(Locale.US))) {
+                // rule in a built-in chain: keep track of its position
+                Integer position = (positions.containsKey(tokens[1]) ? positions.get(tokens[1]) : 0) + 1;
+                positions.put(tokens[1], position);
+                if (tokens.length == 4 && tokens[2].equals("-j") && tokens[3].startsWith("ow_") && !tokens[3].endsWith("_LOCK")) {
+                    positions.put(tokens[1] + " " + tokens[3], position);
+                    stale.add(tokens[1] + " " + tokens[3]);
+                }
+            }
+        }
+
+        // single-rule switch from live chains to shadow chains
+        for (String jump : shadow.getJumps(table)) {
+            String[] parts = jump.split(" ");
+            if (positions.containsKey(jump)) {
+                jumps.add(String.format(Locale.US, "-t %s -R %s %d -j %s%s", table, parts[0], positions.get(jump), parts[1], ShadowChains.SUFFIX));
+                stale.remove(jump);
+            } else {
+                jumps.add(String.format("-t %s -A %s -j %s%s", table, parts[0], parts[1], ShadowChains.SUFFIX));
+            }
+        }
+        for (String jump : stale) {
+            String[] parts = jump.split(" ");
+            cleanup.add(String.format("-t %s -D %s -j %s", table, parts[0], parts[1]));
+        }
+        // garbage collect: flush all first, as old chains jump into each other
+        for (String chain : old) {
+            cleanup.add(String.format("-t %s -F %s", table, chain));
+        }
+        for (String chain : old) {
+            cleanup.add(String.format("-t %s -X %s", table, chain));
+        }
+        for (String chain : shadow.getChains(table)) {
+            renames.add(String.format("-t %s -E %s%s %s", table, chain, ShadowChains.SUFFIX, chain));
+        }
+
+        for (String rule : jumps) {
+            if (!genericRule(rule)) {
+                Log.e("swapChains", "Unable to switch: " + rule);
+                return false;
+            }
+        }
+        // leftovers are harmless: nothing jumps there anymore
+        for (String rule : cleanup) {
+            if (!genericRule(rule)) {
+                Log.e("swapChains", "Unable to apply rule: " + rule);
+            }
+        }
+        for (String rule : renames) {
+            if (!genericRule(rule)) {
+                Log.e("swapChains", "Unable to rename: " + rule);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove what is left of shadow chains after a failed apply, jumps to them included.
+     * @param shadow shadow chains
+     */
+    private void dropShadowChains(final ShadowChains shadow) {
+        for (String table : shadow.getTables()) {
+            for (String jump : shadow.getJumps(table)) {
+                String[] parts = jump.split(" ");
+                genericRule(String.format("-t %s -D %s -j %s%s", table, parts[0], parts[1], ShadowChains.SUFFIX));
+            }
+            for (String chain : shadow.getChains(table)) {
+                genericRule(String.format("-t %s -F %s%s", table, chain, ShadowChains.SUFFIX));
+            }
+            for (String chain : shadow.getChains(table)) {
+                genericRule(String.format("-t %s -X %s%s", table, chain, ShadowChains.SUFFIX));
+            }
+        }
+    }
+
+    /**
+     * Settings and services to set up before rules are applied
+     */
+    private void prepare() {
+        Log.d("Boot: ", "Deactivate some stuff at boot time in order to prevent crashes");
+        Preferences.setBrowserEnabled(context, false);
+        // browser grant isn't part of fresh rules anymore
+        RuleScheduler.cancel(context, RuleScheduler.TYPE_BROWSER, null);
+        // shadow chains may carry the bypass rules, see compileState()
+        Preferences.setOrwallEnabled(context, !Preferences.isOrwallPaused(context));
+        startServices();
+    }
+
+    /**
+     * Services rules depend on
+     */
+    private void startServices() {
+        // DNS cache must be up before queries are redirected to it
+        if (Preferences.isDNSCacheEnabled(context)) {
+            context.startService(new Intent(context, DnsForwarder.class));
+        } else {
+            context.stopService(new Intent(context, DnsForwarder.class));
+        }
+    }
+
+    /**
+     * SIP and remote access rules
+     */
+    private void specialRules() {
+        if (Preferences.isSIPEnabled(this.context)) {
+            Long sip_uid = Long.valueOf(Preferences.getSIPApp(this.context));
+            if (sip_uid != 0) {
+                Log.d("Boot", "Authorizing SIP");
+                manageSip(true, sip_uid);
+            }
+        }
+
+        remoteAccess(Preferences.isADBEnabled(context), Preferences.isSSHEnabled(context));
+    }
+
+    /**
+     * Periodic jobs, once rules are in place
+     */
+    private void schedule() {
+        if (isOrbotInstalled()) {
+            TorMonitor.schedule(context);
+        }
+        if (Preferences.isOptimizeOrderEnabled(context)) {
+            RuleOrderOptimizer.schedule(context);
+        }
+        // alarms don't survive reboots
+        RuleScheduler.arm(context);
     }
 
     /**
@@ -172,16 +777,48 @@ public class Iptables {
                 "-t nat -X ow_OUTPUT",
                 // flush LAN
                 "-F ow_LAN",
-                "-X ow_LAN"
+                "-X ow_LAN",
+                // flush terminal policy
+                "-D OUTPUT -j ow_REJECT",
+                "-F ow_REJECT",
+                "-X ow_REJECT",
+                // flush Tor fast-fail
+                "-D ow_OUTPUT -d 127.0.0.1/32 -j ow_TOR_DOWN",
+                "-F ow_TOR_DOWN",
+                "-X ow_TOR_DOWN",
+                // flush shared Tor chains
+                "-F ow_TOR_FILTER",
+                "-X ow_TOR_FILTER",
+                "-F ow_ORBOT",
+                "-X ow_ORBOT",
+                "-t nat -F ow_TOR_NAT",
+                "-t nat -X ow_TOR_NAT",
+                "-t nat -F ow_ORBOT",
+                "-t nat -X ow_ORBOT",
+                // flush remote access
+                "-F ow_REMOTE",
+                "-X ow_REMOTE",
+                "-t nat -F ow_REMOTE",
+                "-t nat -X ow_REMOTE"
         };
         for (String rule : rules) {
             if (!genericRule(rule)) {
-                Log.e("deactivate", "Unable to remove rule");
-                Log.e("deactivate", rule);
+                Log.e("deactivate", "Unable to remove rule: " + rule);
             }
         }
+        // init-script witness, if rules were never re-applied since boot
+        String marker = Preferences.getBootMarker(context);
+        if (marker != null && genericRule("-S " + marker)) {
+            genericRule("-X " + marker);
+        }
+
+        context.stopService(new Intent(context, DnsForwarder.class));
+        TorMonitor.cancel(context);
+        RuleOrderOptimizer.cancel(context);
+        RuleAnnotations.clear();
 
         // subnet & tethering is no more in iptables
+        LanSet.clear(context);
         Preferences.cleanIptablesPreferences(context);
     }
 
@@ -196,8 +833,7 @@ public class Iptables {
         };
         for (String rule : rules) {
             if (!genericRuleV6(rule)) {
-                Log.e("deactivate", "Unable to remove IPv6 rule");
-                Log.e("deactivate", rule);
+                Log.e("deactivate", "Unable to remove IPv6 rule: " + rule);
             }
         }
     }
@@ -231,26 +867,33 @@ public class Iptables {
     }
 
     /**
-     * update rules for LAN access.
+     * update rules for LAN access: every local subnet is tracked by LanSet,
+     * only the differences are applied.
      */
     public void LANPolicy() {
-        String subnet = NetworkHelper.getSubnet(this.context);
-
-        // Get subnet from SharedPreferences
-        String old_subnet = Preferences.getCurrentSubnet(context);
+        LanSet.update(this.context, this);
+    }
 
-        if (old_subnet != null && !old_subnet.equals(subnet)) {
-            // Remove rules if we got another subnet in sharedPref
-            LanNoNat(old_subnet, false);
-            Preferences.setCurrentSubnet(context, null);
+    /**
+     * Enable or disable the fail-fast terminal policy.
+     * When disabled, blocked packets are silently dropped by the OUTPUT policy.
+     * @param reject boolean, true if blocked traffic must be rejected
+     */
+    public void rejectPolicy(final boolean reject) {
+        String rule = String.format("-%c OUTPUT -j ow_REJECT", (reject ? 'A' : 'D'));
+        if (!genericRule(rule)) {
+            Log.e("rejectPolicy", "Unable to apply rule: " + rule);
         }
+    }
 
-        if (subnet != null && !subnet.equals(old_subnet)) {
-            // Do what's needed with current subnet
-            LanNoNat(subnet, true);
-
-            // Or save new subnet
-            Preferences.setCurrentSubnet(context, subnet);
+    /**
+     * Swap the Tor fast-fail rule in or out of the Tor dispatch path.
+     * @param down boolean, true if Tor is down
+     */
+    public void torDown(final boolean down) {
+        String rule = String.format("-%c ow_OUTPUT -d 127.0.0.1/32 -j ow_TOR_DOWN", (down ? 'I' : 'D'));
+        if (!genericRule(rule)) {
+            Log.e("torDown", "Unable to apply rule: " + rule);
         }
     }
 
@@ -259,21 +902,7 @@ public class Iptables {
      * @param allow boolean, true if we want to add rules, false otherwise.
      */
     public void enableADB(final boolean allow) {
-        char action = (allow ? 'I' : 'D');
-
-        // TODO: lock in order to authorize only LAN
-        String[] rules = {
-                "-%c ow_INPUT -p tcp --dport 5555 -m conntrack --ctstate NEW,ESTABLISHED -j ACCEPT",
-                "-%c ow_OUTPUT -p tcp --sport 5555 -m conntrack --ctstate ESTABLISHED -j ACCEPT",
-                "-t nat -%c ow_OUTPUT -p tcp --sport 5555 -j RETURN",
-        };
-
-        for (String rule : rules) {
-            if (!genericRule(String.format(rule, action))) {
-                Log.e("enableADB", "Unable to add rule");
-                Log.e("enableADB", String.format(rule, action));
-            }
-        }
+        remoteAccess(allow, Preferences.isSSHEnabled(context));
     }
 
     /**
@@ -281,21 +910,37 @@ public class Iptables {
      * @param allow boolean, true if we want to add rules, false otherwise.
      */
     public void enableSSH(final boolean allow) {
-        char action = (allow ? 'I' : 'D');
+        remoteAccess(Preferences.isADBEnabled(context), allow);
+    }
+
+    /**
+     * Rebuild ow_REMOTE chains, holding incoming remote access (ADB, SSH).
+     * Ports are merged by RuleOptimizer into a single multiport rule per table.
+     * @param adb boolean, true if ADB (TCP 5555) is allowed
+     * @param ssh boolean, true if SSH (TCP 22) is allowed
+     */
+    public void remoteAccess(final boolean adb, final boolean ssh) {
+        ArrayList<Integer> ports = new ArrayList<>();
+        if (ssh) ports.add(22);
+        if (adb) ports.add(5555);
 
         // TODO: lock in order to authorize only LAN
-        // TODO: better way to implement this kind of opening (copy-paste isn't a great way)
-        // Have to think a bit more about that.
-        String[] rules = {
-                "-%c ow_INPUT -p tcp --dport 22 -m conntrack --ctstate NEW,ESTABLISHED -j ACCEPT",
-                "-%c ow_OUTPUT -p tcp --sport 22 -m conntrack --ctstate ESTABLISHED -j ACCEPT",
-                "-t nat -%c ow_OUTPUT -p tcp --sport 22 -j RETURN",
-        };
+        ArrayList<String> rules = new ArrayList<>();
+        rules.add("-F ow_REMOTE");
+        rules.add("-t nat -F ow_REMOTE");
+        for (int port : ports) {
+            rules.add(String.format(Locale.US,
+                    "-A ow_REMOTE -p tcp --dport %d -m conntrack --ctstate NEW -j ACCEPT", port));
+        }
+        // ACCEPT in nat means "no translation", as RETURN would only leave ow_REMOTE
+        for (int port : ports) {
+            rules.add(String.format(Locale.US,
+                    "-t nat -A ow_REMOTE -p tcp --sport %d -j ACCEPT", port));
+        }
 
-        for (String rule : rules) {
-            if (!genericRule(String.format(rule, action))) {
-                Log.e("enableSSH", "Unable to add rule");
-                Log.e("enableSSH", String.format(rule, action));
+        for (String rule : RuleOptimizer.optimize(rules)) {
+            if (!genericRule(rule)) {
+                Log.e("remoteAccess", "Unable to apply rule: " + rule);
             }
         }
     }
@@ -319,8 +964,7 @@ public class Iptables {
         };
         for (String rule : rules) {
             if (!genericRuleV6(rule)) {
-                Log.e(Iptables.class.getName(), "Unable to initialize IPv6");
-                Log.e(Iptables.class.getName(), rule);
+                Log.e(Iptables.class.getName(), "Unable to initialize IPv6: " + rule);
             }
         }
     }
@@ -330,21 +974,48 @@ public class Iptables {
      */
     public void initOutputs() {
         int orbot_uid = getOrbotUID();
-        Long dns_proxy = Long.valueOf(Preferences.getDNSPort(context));
+        long dns_proxy = getDNSTarget();
         ArrayList<String> rules = new ArrayList<>();
         rules.add("-P OUTPUT DROP");
         rules.add("-N ow_OUTPUT");
+        // fast path: per-app rules only see NEW flows. Must stay first, see genericRule()
+        rules.add(String.format(Locale.US,
+                "-A ow_OUTPUT -m conntrack --ctstate RELATED,ESTABLISHED -j ACCEPT%s",
+                (getSupportComment() ? " -m comment --comment \"Allow related,established outputs\"" : "")
+        ));
         rules.add("-A OUTPUT -j ow_OUTPUT");
+        // terminal policy: anything ow_OUTPUT didn't accept ends up there
+        rules.add("-N ow_REJECT");
+        rules.add(String.format(Locale.US,
+                "-A ow_REJECT -p tcp %s -j REJECT --reject-with tcp-reset%s",
+                REJECT_LIMIT, (getSupportComment() ? " -m comment --comment \"Fail fast on blocked TCP\"" : "")
+        ));
+        rules.add(String.format(Locale.US,
+                "-A ow_REJECT -p udp %s -j REJECT --reject-with icmp-port-unreachable%s",
+                REJECT_LIMIT, (getSupportComment() ? " -m comment --comment \"Fail fast on blocked UDP\"" : "")
+        ));
+        if (Preferences.isRejectEnabled(context)) {
+            rules.add("-A OUTPUT -j ow_REJECT");
+        }
         if (orbot_uid > 0){
-            // let orbot output
+            // let orWall probe Orbot, and its DNS cache talk to DNSPort and answer apps, on loopback only
             rules.add(String.format(Locale.US,
-                    "-A ow_OUTPUT -m owner --uid-owner %d -m conntrack --ctstate NEW,RELATED,ESTABLISHED -j ACCEPT%s",
-                    orbot_uid, (getSupportComment() ? " -m comment --comment \"Allow Orbot outputs\"" : "")
+                    "-A ow_OUTPUT -o lo -m owner --uid-owner %d -j ACCEPT%s",
+                    context.getApplicationInfo().uid, (getSupportComment() ? " -m comment --comment \"Allow orWall on loopback\"" : "")
             ));
+            // shared chains: the only place knowing Orbot UID and ports
+            rules.add("-N ow_ORBOT");
+            rules.add("-N ow_TOR_FILTER");
+            rules.add("-N ow_TOR_DOWN");
+            rules.add("-t nat -N ow_ORBOT");
+            rules.add("-t nat -N ow_TOR_NAT");
+            rules.addAll(torChainsRules(orbot_uid));
+            // let orbot output
+            rules.add("-A ow_OUTPUT -j ow_ORBOT");
             // accept redirected system dns queries
             rules.add(String.format(Locale.US,
-                    "-A ow_OUTPUT -m owner --uid-owner 0 -d 127.0.0.1/32 -m conntrack --ctstate NEW,RELATED,ESTABLISHED -p udp -m udp --dport %d -j ACCEPT%s",
-                    dns_proxy, (getSupportComment() ? " -m comment --comment \"Allow System DNS queries\"" : "")
+                    "-A ow_OUTPUT -m owner --uid-owner 0 -d 127.0.0.1/32 -p udp -j ow_TOR_FILTER%s",
+                    (getSupportComment() ? " -m comment --comment \"Allow System DNS queries\"" : "")
             ));
         } else {
             // can't redirect system dns query, we have to accept them ... for now
@@ -357,16 +1028,16 @@ public class Iptables {
         rules.add("-t nat -N ow_OUTPUT");
         // do not redirect localhost addresses
         rules.add("-t nat -A ow_OUTPUT -d 127.0.0.1/32 -j RETURN");
+        // remote access replies
+        rules.add("-t nat -N ow_REMOTE");
+        rules.add("-t nat -A ow_OUTPUT -j ow_REMOTE");
         if (orbot_uid > 0){
             // do not redirect orbot
-            rules.add(String.format(Locale.US,
-                    "-t nat -A ow_OUTPUT -m owner --uid-owner %d -j RETURN%s",
-                    orbot_uid, (getSupportComment() ? " -m comment --comment \"Orbot bypasses itself.\"" : "")
-            ));
+            rules.add("-t nat -A ow_OUTPUT -j ow_ORBOT");
             // Redirect system dsn queries to TOR
             rules.add(String.format(Locale.US,
-                    "-t nat -A ow_OUTPUT -m owner --uid-owner 0 -p udp -m udp --dport 53 -j REDIRECT --to-ports %d%s",
-                    dns_proxy, (getSupportComment() ? " -m comment --comment \"Allow DNS queries\"" : "")
+                    "-t nat -A ow_OUTPUT -m owner --uid-owner 0 -p udp -m udp --dport 53 -j ow_TOR_NAT%s",
+                    (getSupportComment() ? " -m comment --comment \"Allow DNS queries\"" : "")
             ));
         }
 
@@ -377,10 +1048,97 @@ public class Iptables {
         // at the end, deactivate boot locking
         rules.add("-D OUTPUT -j ow_OUTPUT_LOCK");
 
-        for (String rule : rules) {
+        for (String rule : RuleOptimizer.optimize(rules)) {
             if (!genericRule(rule)) {
-                Log.e(Iptables.class.getName(), "Unable to initialize");
-                Log.e(Iptables.class.getName(), rule);
+                Log.e(Iptables.class.getName(), "Unable to initialize: " + rule);
+            }
+        }
+    }
+
+    /**
+     * Content of the shared Tor chains, which are the only ones depending on
+     * Orbot UID and proxy ports. Apps only jump into them.
+     * @param orbot_uid Orbot UID
+     * @return list of rules filling ow_ORBOT, ow_TOR_NAT, ow_TOR_FILTER and ow_TOR_DOWN
+     */
+    private ArrayList<String> torChainsRules(final int orbot_uid) {
+        long trans_port = Long.valueOf(Preferences.getTransPort(context));
+        long dns_port = getDNSTarget();
+        ArrayList<String> rules = new ArrayList<>();
+
+        rules.add(String.format(Locale.US,
+                "-A ow_ORBOT -m owner --uid-owner %d -m conntrack --ctstate NEW -j ACCEPT%s",
+                orbot_uid, (getSupportComment() ? " -m comment --comment \"Allow Orbot outputs\"" : "")
+        ));
+        // ACCEPT in nat means "no translation", as RETURN would only leave ow_ORBOT
+        rules.add(String.format(Locale.US,
+                "-t nat -A ow_ORBOT -m owner --uid-owner %d -j ACCEPT%s",
+                orbot_uid, (getSupportComment() ? " -m comment --comment \"Orbot bypasses itself.\"" : "")
+        ));
+
+        rules.add(String.format(Locale.US,
+                "-t nat -A ow_TOR_NAT -p tcp -m tcp --tcp-flags FIN,SYN,RST,ACK SYN -j REDIRECT --to-ports %d%s",
+                trans_port, (getSupportComment() ? " -m comment --comment \"Force through TransPort\"" : "")
+        ));
+        rules.add(String.format(Locale.US,
+                "-t nat -A ow_TOR_NAT -p udp --dport 53 -j REDIRECT --to-ports %d%s",
+                dns_port, (getSupportComment() ? " -m comment --comment \"Force through DNSProxy\"" : "")
+        ));
+
+        rules.add(String.format(Locale.US,
+                "-A ow_TOR_FILTER -d 127.0.0.1 -m conntrack --ctstate NEW -m tcp -p tcp --dport %d -j ACCEPT%s",
+                trans_port, (getSupportComment() ? " -m comment --comment \"Allow through TransPort\"" : "")
+        ));
+        rules.add(String.format(Locale.US,
+                "-A ow_TOR_FILTER -d 127.0.0.1 -m conntrack --ctstate NEW -p udp --dport %d -j ACCEPT%s",
+                dns_port, (getSupportComment() ? " -m comment --comment \"Allow through DNSProxy\"" : "")
+        ));
+
+        // fast-fail chain, jumped from ow_OUTPUT only while Tor is down
+        // orWall probes must still reach Orbot
+        rules.add(String.format(Locale.US,
+                "-A ow_TOR_DOWN -m owner --uid-owner %d -j RETURN",
+                context.getApplicationInfo().uid
+        ));
+        rules.add(String.format(Locale.US,
+                "-A ow_TOR_DOWN -p tcp --dport %d -j REJECT --reject-with tcp-reset%s",
+                trans_port, (getSupportComment() ? " -m comment --comment \"Tor is down\"" : "")
+        ));
+        rules.add(String.format(Locale.US,
+                "-A ow_TOR_DOWN -p udp --dport %d -j REJECT --reject-with icmp-port-unreachable%s",
+                dns_port, (getSupportComment() ? " -m comment --comment \"Tor is down\"" : "")
+        ));
+        return rules;
+    }
+
+    /**
+     * Rewrite the shared Tor chains after a proxy port change or an Orbot (re)install.
+     * This touches a constant number of rules, whatever the number of apps.
+     */
+    public void refreshTorChains() {
+        if (!genericRule("-C ow_OUTPUT -j ow_ORBOT")) {
+            // Orbot wasn't there when chains were built: no jump to refresh
+            reapply();
+            return;
+        }
+
+        // Orbot UID may have changed
+        _orbotUID = null;
+        int orbot_uid = getOrbotUID();
+
+        ArrayList<String> rules = new ArrayList<>();
+        rules.add("-F ow_ORBOT");
+        rules.add("-F ow_TOR_FILTER");
+        rules.add("-F ow_TOR_DOWN");
+        rules.add("-t nat -F ow_ORBOT");
+        rules.add("-t nat -F ow_TOR_NAT");
+        if (orbot_uid > 0) {
+            rules.addAll(torChainsRules(orbot_uid));
+        }
+
+        for (String rule : RuleOptimizer.optimize(rules)) {
+            if (!genericRule(rule)) {
+                Log.e("refreshTorChains", "Unable to apply rule: " + rule);
             }
         }
     }
@@ -395,25 +1153,28 @@ public class Iptables {
         rules.add("-P INPUT DROP");
         rules.add("-N ow_INPUT");
         rules.add("-A INPUT -j ow_INPUT");
+        // fast path: must stay first, see genericRule()
+        rules.add(String.format(Locale.US,
+                "-A ow_INPUT -m conntrack --ctstate RELATED,ESTABLISHED -j ACCEPT%s",
+                (getSupportComment() ? " -m comment --comment \"Allow related,established inputs\"" : "")
+        ));
+        // remote access
+        rules.add("-N ow_REMOTE");
+        rules.add("-A ow_INPUT -j ow_REMOTE");
         if (orbot_uid > 0){
             // accept orbot inputs
             rules.add(String.format(Locale.US,
-                    "-A ow_INPUT -m owner --uid-owner %d -m conntrack --ctstate NEW,RELATED,ESTABLISHED -j ACCEPT%s",
+                    "-A ow_INPUT -m owner --uid-owner %d -m conntrack --ctstate NEW -j ACCEPT%s",
                     orbot_uid, (getSupportComment() ? " -m comment --comment \"Allow Orbot inputs\"" : "")
             ));
         }
-        rules.add(String.format(Locale.US,
-                "-A ow_INPUT -m conntrack --ctstate RELATED,ESTABLISHED -j ACCEPT%s",
-                (getSupportComment() ? " -m comment --comment \"Allow related,established inputs\"" : "")
-        ));
         // at the end, deactivate boot locking
         rules.add("-D INPUT -j ow_INPUT_LOCK");
 
 
-        for (String rule : rules) {
+        for (String rule : RuleOptimizer.optimize(rules)) {
             if (!genericRule(rule)) {
-                Log.e(Iptables.class.getName(), "Unable to initialize");
-                Log.e(Iptables.class.getName(), rule);
+                Log.e(Iptables.class.getName(), "Unable to initialize: " + rule);
             }
         }
     }
@@ -430,69 +1191,37 @@ public class Iptables {
 
     /**
      * Checks some system settings before calling the method installing for good the init-script
+     * @param context  application context
+     * @param iptables Iptables instance, from the rule writer
      */
-    public static void installInitScript(Context context) {
-
-        final String src_file = new File(context.getDir("bin", 0), "userinit.sh").getAbsolutePath();
-
-        CheckSum check_src = new CheckSum(src_file);
-        CheckSum check_dst = new CheckSum(DST_FILE);
-
-        if (initSupported()) {
+    public static void installInitScript(Context context, Iptables iptables) {
+        if (!initSupported()) {
+            Preferences.setEnforceInitScript(context, false);
+            return;
+        }
 
-            if (!check_dst.hash().equals(check_src.hash())) {
-                doInstallScripts(src_file, DST_FILE);
-            }
-            File local_dst = new File(DIR_DST_1);
-            if (local_dst.exists()) {
-                CheckSum check_dst1 = new CheckSum(DST_FILE_1);
-                if (!check_dst1.hash().equals(check_src.hash())) {
-                    doInstallScripts(src_file, DST_FILE_1);
-                }
+        // the script carries the whole current ruleset
+        List<String> compiled = iptables.stripComments(iptables.compile(new NatRules(context).getAllRules()), false);
+        BootScript script = new BootScript(iptables.getOrbotUID(), compiled);
+        if (!InitScriptDeployer.isDeployed(context, script.getDigest())) {
+            final File src = new File(context.getDir("bin", 0), "userinit.sh");
+            if (!script.write(context, src) || !InitScriptDeployer.deploy(context, src, script.getDigest())) {
+                Log.e("Init", "Unable to install init-script");
+                return;
             }
-            Preferences.setEnforceInitScript(context, true);
-        } else {
-            Preferences.setEnforceInitScript(context, false);
         }
+        Preferences.setBootMarker(context, script.getMarker());
+        Preferences.setEnforceInitScript(context, true);
     }
 
     /**
-     * Really install init-script (copies it from app RAW directory)
-     * @param src_file String matching source init-script
-     * @param dst_file String matching destination init-script
+     * Generate the init-script again after a ruleset change, if it is enforced
+     * @param context  application context
+     * @param iptables Iptables instance, from the rule writer
      */
-    private static void doInstallScripts(String src_file, String dst_file) {
-        Shell shell;
-        try {
-            shell = Shell.startRootShell();
-        } catch (IOException e) {
-            Log.e("Shell", "Unable to get shell");
-            return;
-        }
-
-        if (shell != null) {
-            String CMD = String.format("cp %s %s", src_file, dst_file);
-
-            SimpleCommand command1 = new SimpleCommand("mount -o remount,rw /system");
-            SimpleCommand command2 = new SimpleCommand(CMD);
-            CMD = String.format("chmod 0755 %s", dst_file);
-            SimpleCommand command3 = new SimpleCommand(CMD);
-            SimpleCommand command4 = new SimpleCommand("mount -o remount,ro /system");
-            try {
-                shell.add(command1).waitForFinish();
-                shell.add(command2).waitForFinish();
-                shell.add(command3).waitForFinish();
-                shell.add(command4).waitForFinish();
-            } catch (IOException e) {
-                Log.e("Shell", "Unable to run simple command");
-            } catch (TimeoutException e) {
-                Log.e("Shell", "Error while closing the Shell");
-            } finally {
-                try {
-                    shell.close();
-                } catch (IOException e) {
-                }
-            }
+    public static void updateInitScript(Context context, Iptables iptables) {
+        if (initSupported() && Preferences.isEnforceInitScript(context)) {
+            installInitScript(context, iptables);
         }
     }
 
@@ -500,33 +1229,10 @@ public class Iptables {
      * Removes init-script.
      */
     public static void removeIniScript(Context context) {
-        Shell shell;
-        try {
-            shell = Shell.startRootShell();
-        } catch (IOException e) {
-            Log.e("Shell", "Unable to get shell");
-            return;
-        }
-        if (shell != null) {
-            SimpleCommand command1 = new SimpleCommand("mount -o remount,rw /system");
-            SimpleCommand command2 = new SimpleCommand("rm -f " + DST_FILE);
-            SimpleCommand command3 = new SimpleCommand("mount -o remount,ro /system");
-            try {
-                shell.add(command1).waitForFinish();
-                shell.add(command2).waitForFinish();
-                shell.add(command3).waitForFinish();
-            } catch (IOException e) {
-                Log.e("Shell", "Unable to run simple command");
-            } catch (TimeoutException e) {
-                Log.e("Shell", "Error while closing the Shell");
-            } finally {
-                Preferences.setEnforceInitScript(context, false);
-                try {
-                    shell.close();
-                } catch (IOException e) {
-                }
-            }
+        if (!InitScriptDeployer.remove(context)) {
+            Log.e("Init", "Unable to remove init-script");
         }
+        Preferences.setEnforceInitScript(context, false);
     }
 
     /**
@@ -536,7 +1242,6 @@ public class Iptables {
      */
     public void manageSip(boolean status, Long uid) {
         String[] rules = {
-                "-%c ow_INPUT -m owner --uid-owner %d -m conntrack --ctstate RELATED,ESTABLISHED -p udp -j ACCEPT",
                 "-%c ow_OUTPUT -m owner --uid-owner %d -p udp -j ACCEPT",
                 "-t nat -%c ow_OUTPUT -m owner --uid-owner %d -p udp -j RETURN",
         };
@@ -554,10 +1259,7 @@ public class Iptables {
      */
     public void manageCaptiveBrowser(boolean status, Long uid) {
         String[] rules = {
-                "-%c ow_INPUT -m owner --uid-owner %d -m conntrack --ctstate RELATED,ESTABLISHED -p udp --sport 53 -j ACCEPT",
-                "-%c ow_INPUT -m conntrack --ctstate RELATED,ESTABLISHED -m owner --uid-owner %d -j ACCEPT",
                 "-%c ow_OUTPUT -m owner --uid-owner %d -j ACCEPT",
-                "-%c ow_OUTPUT -m owner --uid-owner %d -m conntrack --ctstate ESTABLISHED -j ACCEPT",
                 "-t nat -%c ow_OUTPUT -m owner --uid-owner %d -j RETURN",
                 "-t nat -%c ow_OUTPUT -m owner --uid-owner 0 -p udp -m udp --dport 53 -j RETURN"
         };
@@ -583,6 +1285,9 @@ public class Iptables {
             if (before == null || !before.contains(item))
                 tether(true, item);
         }
+
+        // tethered subnets are part of the LAN set
+        LANPolicy();
     }
 
     public void tether(boolean status, String intf){
@@ -624,24 +1329,11 @@ public class Iptables {
 
         for (String rule : rules) {
             if (!genericRule(rule)) {
-                Log.e("Tethering", "Unable to apply rule");
-                Log.e("Tethering", rule);
+                Log.e("Tethering", "Unable to apply rule: " + rule);
             }
         }
-
-        // this is a local network
-
-        String mask;
-        if (status){
-            mask = NetworkHelper.getMask(intf);
-            Preferences.setTetherNetwork(context, intf, mask);
-        }
-        else
-            mask = Preferences.getTetherNetwork(context, intf);
-        LanNoNat(mask, status);
     }
 
-
 /*
     /* still not work
     public void tether_tor(Context context, boolean status, String intf){
@@ -654,8 +1346,7 @@ public class Iptables {
         rules.add(String.format(" -t nat -%c PREROUTING -i %s -p tcp -j REDIRECT --to-ports %s", action, intf, trans_port));
         for (String rule : rules) {
             if (!genericRule(rule)) {
-                Log.e("Tor tethering", "Unable to apply rule");
-                Log.e("Tor tethering", rule);
+                Log.e("Tor tethering", "Unable to apply rule: " + rule);
             }
         }
     }
@@ -671,28 +1362,16 @@ public class Iptables {
      */
     public void natApp(Context context, final long appUID, final char action, final String appName) {
         if (!isOrbotInstalled()) return;
-        long trans_port = Long.valueOf(Preferences.getTransPort(context));
-        long dns_port = Long.valueOf(Preferences.getDNSPort(context));
         String[] RULES = {
                 String.format(Locale.US,
-                        "-t nat -%c ow_OUTPUT -p tcp -m tcp --tcp-flags FIN,SYN,RST,ACK SYN -m owner --uid-owner %d -j REDIRECT --to-ports %d%s",
-                        action, appUID, trans_port,
-                        (getSupportComment() ? String.format(" -m comment --comment \"Force %s through TransPort\"", appName) : "")
-                ),
-                String.format(Locale.US,
-                        "-t nat -%c ow_OUTPUT -p udp --dport 53 -m owner --uid-owner %d -j REDIRECT --to-ports %d%s",
-                        action, appUID, dns_port,
-                        (getSupportComment() ? String.format(" -m comment --comment \"Force %s through DNSProxy\"", appName) : "")
-                ),
-                String.format(Locale.US,
-                        "-%c ow_OUTPUT -d 127.0.0.1 -m conntrack --ctstate NEW,ESTABLISHED -m owner --uid-owner %d -m tcp -p tcp --dport %d -j ACCEPT%s",
-                        action, appUID, trans_port,
-                        (getSupportComment() ? String.format(" -m comment --comment \"Allow %s through TransPort\"", appName) : "")
+                        "-t nat -%c ow_OUTPUT -m owner --uid-owner %d -j ow_TOR_NAT%s",
+                        action, appUID,
+                        (getSupportComment() ? String.format(" -m comment --comment \"Force %s through Tor\"", appName) : "")
                 ),
                 String.format(Locale.US,
-                        "-%c ow_OUTPUT -d 127.0.0.1 -m conntrack --ctstate NEW,ESTABLISHED -m owner --uid-owner %d -p udp --dport %d -j ACCEPT%s",
-                        action, appUID, dns_port,
-                        (getSupportComment() ? String.format(" -m comment --comment \"Allow %s through DNSProxy\"", appName) : "")
+                        "-%c ow_OUTPUT -d 127.0.0.1 -m owner --uid-owner %d -j ow_TOR_FILTER%s",
+                        action, appUID,
+                        (getSupportComment() ? String.format(" -m comment --comment \"Allow %s through Tor\"", appName) : "")
                 ),
         };
 
@@ -703,6 +1382,34 @@ public class Iptables {
         }
     }
 
+    /**
+     * Apply or remove all rules of an application
+     *
+     * @param allow        boolean, true if we want to add rules, false otherwise
+     * @param appUID       application UID
+     * @param appName      application package name
+     * @param onionType    Constants.DB_ONION_TYPE_*
+     * @param localHost    true if the app may connect to localhost
+     * @param localNetwork true if the app may connect to LAN
+     */
+    public void appRule(final boolean allow, final long appUID, final String appName, final String onionType,
+                        final boolean localHost, final boolean localNetwork) {
+        if (onionType.equals(Constants.DB_ONION_TYPE_TOR)) {
+            natApp(context, appUID, (allow ? 'A' : 'D'), appName);
+        } else
+        if (onionType.equals(Constants.DB_ONION_TYPE_BYPASS)) {
+            bypass(appUID, appName, allow);
+        }
+
+        if (localHost) {
+            localHost(appUID, appName, allow);
+        }
+
+        if (localNetwork) {
+            localNetwork(appUID, appName, allow);
+        }
+    }
+
     public void LanNoNat(final String lan, final boolean allow) {
         char action = (allow ? 'I' : 'D');
 
@@ -725,7 +1432,35 @@ public class Iptables {
     }
 
     public boolean genericRule(final String rule) {
-        return runCommand(String.format((getSupportWait())?"%s -w %s":"%s %s", Constants.IPTABLES, rule));
+        String spec = belowFastPath(rule);
+        if (recording != null && !CHECK.matcher(spec).find()) {
+            // comments are kept: they are dealt with when the ruleset is applied, see stripComments()
+            recording.add(spec);
+            return true;
+        }
+        if (getCommentSideTable()) {
+            spec = RuleAnnotations.strip(spec, true);
+        }
+        boolean success = runCommand(String.format((getSupportWait())?"%s -w %s":"%s %s", Constants.IPTABLES, spec));
+        if (success && LOCK_DELETE.matcher(spec).find()) {
+            // lockdown ends with the last lock jump gone
+            BootTimeline.mark(BootTimeline.LOCK_REMOVED);
+        }
+        return success;
+    }
+
+    /**
+     * ow_OUTPUT and ow_INPUT start with the established fast path.
+     * Turn head inserts into inserts right below it.
+     * @param rule iptables rule
+     * @return rule, with an insert position if needed
+     */
+    private String belowFastPath(final String rule) {
+        Matcher matcher = HEAD_INSERT.matcher(rule);
+        if (!matcher.find()) return rule;
+        // while paused, bypass rules sit above the fast path; recorded rulesets get them last
+        boolean paused = (recording == null && Preferences.isOrwallPaused(context));
+        return matcher.replaceFirst("-I $1 " + (paused ? HEAD_POSITION + 1 : HEAD_POSITION) + " ");
     }
 
     public boolean genericRuleV6(final String rule) {
@@ -736,7 +1471,7 @@ public class Iptables {
         char action = (allow ? 'A' : 'D');
         String[] rules = {
                 String.format(Locale.US,
-                        "-%c ow_OUTPUT -m conntrack --ctstate NEW,ESTABLISHED,RELATED -m owner --uid-owner %d -j ACCEPT%s",
+                        "-%c ow_OUTPUT -m conntrack --ctstate NEW -m owner --uid-owner %d -j ACCEPT%s",
                         action, appUID,
                         (getSupportComment() ? String.format(" -m comment --comment \"Allow %s to bypass Proxies\"", appName) : "")
                 ),
@@ -0,0 +1,85 @@
+package org.ethack.orwall.lib;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps track of every local subnet (Wi-Fi, Ethernet, USB/Bluetooth tethering, secondary addresses)
+ * as one set, and updates the ow_LAN jumps incrementally when this set changes.
+ * <p/>
+ * The set reflects what is actually installed in iptables. It lives in memory, and is saved in
+ * SharedPreferences so that we still know what to remove after the process got killed.
+ */
+public class LanSet {
+    private final static String TAG = "LanSet";
+
+    private static Set<String> installed = null;
+
+    private static Set<String> getInstalled(Context context) {
+        if (installed == null) {
+            installed = new HashSet<>();
+            Set<String> saved = Preferences.getLanSubnets(context);
+            if (saved != null) {
+                installed.addAll(saved);
+            } else {
+                // upgrade from the single current_subnet and tether_net_ preferences
+                installed.addAll(Preferences.getLegacyLanSubnets(context));
+            }
+        }
+        return installed;
+    }
+
+    /**
+     * Get a copy of the subnets currently allowed as LAN.
+     *
+     * @param context application context
+     * @return Set of networks
+     */
+    public static synchronized Set<String> get(Context context) {
+        return new HashSet<>(getInstalled(context));
+    }
+
+    /**
+     * Compare current local subnets with installed ones, and only add or remove the differences.
+     *
+     * @param context  application context
+     * @param iptables Iptables instance used to apply the changes
+     */
+    public static synchronized void update(Context context, Iptables iptables) {
+        Set<String> current = NetworkSnapshot.get(context).getLanSubnets();
+        Set<String> before = getInstalled(context);
+
+        if (current.equals(before)) return;
+
+        for (String subnet : before) {
+            if (!current.contains(subnet)) {
+                Log.d(TAG, "Removing LAN " + subnet);
+                iptables.LanNoNat(subnet, false);
+            }
+        }
+        for (String subnet : current) {
+            if (!before.contains(subnet)) {
+                Log.d(TAG, "Adding LAN " + subnet);
+                iptables.LanNoNat(subnet, true);
+            }
+        }
+
+        installed = current;
+        Preferences.setLanSubnets(context, new HashSet<>(current));
+        Preferences.removeLegacyLanSubnets(context);
+    }
+
+    /**
+     * Forget installed subnets — the ow_LAN jumps are gone along with orWall chains.
+     *
+     * @param context application context
+     */
+    public static synchronized void clear(Context context) {
+        installed = new HashSet<>();
+        Preferences.setLanSubnets(context, null);
+        Preferences.removeLegacyLanSubnets(context);
+    }
+}
@@ -11,6 +11,7 @@ import org.ethack.orwall.database.natDBHelper;
 import org.sufficientlysecure.rootcommands.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -37,6 +38,36 @@ public class NatRules {
         return (result == 1);
     }
 
+    /**
+     * Remove several apps in one transaction, from current rules and from every profile.
+     * Profiles losing an app have their compiled ruleset dropped, so that it is built again.
+     * @param appUIDs apps to remove
+     * @return number of removed rows from current rules
+     */
+    public int removeAppsFromRules(Collection<Long> appUIDs) {
+        String filter = natDBHelper.COLUMN_APPUID + "=?";
+        String outdated = String.format("UPDATE %s SET %s=NULL WHERE %s IN (SELECT %s FROM %s WHERE %s=?);",
+                natDBHelper.PROFILES_TABLE_NAME, natDBHelper.COLUMN_COMPILED, natDBHelper.COLUMN_PROFILE,
+                natDBHelper.COLUMN_PROFILE, natDBHelper.PROFILE_RULES_TABLE_NAME, natDBHelper.COLUMN_APPUID);
+        int result = 0;
+
+        SQLiteDatabase db = this.dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Long appUID : appUIDs) {
+                String[] args = new String[]{String.valueOf(appUID)};
+                result += db.delete(natDBHelper.NAT_TABLE_NAME, filter, args);
+                db.execSQL(outdated, args);
+                db.delete(natDBHelper.PROFILE_RULES_TABLE_NAME, filter, args);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.close();
+        return result;
+    }
+
     public boolean addAppToRules(Long appUID, String appName, String onionType, Boolean localHost, Boolean localNetwork) {
 
         ContentValues contentValues = new ContentValues();
@@ -1,12 +1,13 @@
 package org.ethack.orwall.lib;
 
 import android.content.Context;
-import android.net.DhcpInfo;
 import android.net.ConnectivityManager;
-import android.net.wifi.WifiManager;
 import android.util.Log;
 
-import java.lang.reflect.InvocationTargetException;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.Inet4Address;
 import java.net.InetAddress;
@@ -15,151 +16,212 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.nio.ByteOrder;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 /**
- * Small helper in order to get some network information
+ * Small helper in order to get some network information.
+ * Callers should rather use NetworkSnapshot, which caches those results.
  */
 public class NetworkHelper {
 
     private static String TAG = "NetworkHelper";
 
+    private final static String PROC_ROUTE = "/proc/net/route";
+    private final static String SYS_CLASS_NET = "/sys/class/net";
+
+    /**
+     * Interface name prefixes we consider as local networks: Wi-Fi, Ethernet (docks),
+     * USB and Bluetooth tethering, and Wi-Fi hotspot.
+     */
+    private final static String[] LAN_INTERFACES = {
+            "wlan", "eth", "rndis", "usb", "bt-pan", "bnep", "ap", "swlan", "softap"
+    };
+
+    // ConnectivityManager.getTetheredIfaces() is hidden: resolve it once, then reuse the handle.
+    private static Method getTetheredIfaces = null;
+    private static boolean tetheredIfacesResolved = false;
+
+    private static synchronized Method getTetheredIfacesMethod(ConnectivityManager connectivityManager) {
+        if (!tetheredIfacesResolved) {
+            try {
+                getTetheredIfaces = connectivityManager.getClass().getMethod("getTetheredIfaces");
+            } catch (NoSuchMethodException e) {
+                Log.e(TAG, "getTetheredIfaces isn't available on this device");
+            }
+            tetheredIfacesResolved = true;
+        }
+        return getTetheredIfaces;
+    }
+
     /**
-     * Tries to detect if we're sharing the connection or not.
+     * Get tethered interfaces.
      * It's not that easy, as it seems there is no simple API to call for that :(.
      *
      * @param context Context in order to get ConnectivityManager
-     * @return boolean (true if connection is shared)
+     * @return Set of interface names, empty if connection isn't shared
      */
-    public static boolean isTether(Context context) {
+    public static Set<String> getTetheredInterfaces(Context context) {
+        Set<String> set = new HashSet<>();
         ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        Method method = getTetheredIfacesMethod(connectivityManager);
+        if (method == null) return set;
 
-        Method[] methods = connectivityManager.getClass().getDeclaredMethods();
-        String[] tethered = {};
-        for (Method method : methods) {
-            if (method.getName().equals("getTetheredIfaces")) {
-                try {
-                    tethered = (String[]) method.invoke(connectivityManager);
-                } catch (IllegalArgumentException e) {
-                    Log.e(TAG, e.getMessage());
-                } catch (IllegalAccessException e) {
-                    Log.e(TAG, e.getMessage());
-                } catch (InvocationTargetException e) {
-                    Log.e(TAG, e.getMessage());
-                }
-            }
-        }
-        return (tethered.length != 0);
-    }
-
-    private static int netmaskToCIDR(int netmask){
-        switch (netmask){
-            case 0x80000000: return 1;
-            case 0xC0000000: return 2;
-            case 0xE0000000: return 3;
-            case 0xF0000000: return 4;
-            case 0xF8000000: return 5;
-            case 0xFC000000: return 6;
-            case 0xFE000000: return 7;
-            case 0xFF000000: return 8;
-            case 0xFF800000: return 9;
-            case 0xFFC00000: return 10;
-            case 0xFFE00000: return 11;
-            case 0xFFF00000: return 12;
-            case 0xFFF80000: return 13;
-            case 0xFFFC0000: return 14;
-            case 0xFFFE0000: return 15;
-            case 0xFFFF0000: return 16;
-            case 0xFFFF8000: return 17;
-            case 0xFFFFC000: return 18;
-            case 0xFFFFE000: return 19;
-            case 0xFFFFF000: return 20;
-            case 0xFFFFF800: return 21;
-            case 0xFFFFFC00: return 22;
-            case 0xFFFFFE00: return 23;
-            case 0xFFFFFF00: return 24;
-            case 0xFFFFFF80: return 25;
-            case 0xFFFFFFC0: return 26;
-            case 0xFFFFFFE0: return 27;
-            case 0xFFFFFFF0: return 28;
-            case 0xFFFFFFF8: return 29;
-            case 0xFFFFFFFC: return 30;
-            case 0xFFFFFFFE: return 31;
-            case 0xFFFFFFFF: return 32;
-            default:
-                return 0;
+        try {
+            String[] intfs = (String[]) method.invoke(connectivityManager);
+            if (intfs != null)
+                Collections.addAll(set, intfs);
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to get tethered interfaces: " + e.getMessage());
         }
+        return set;
     }
 
-    private static String getNetwork(DhcpInfo dhcp){
-        int ip = dhcp.ipAddress;
-        int mask = dhcp.netmask;
-        if (ip == 0 || mask == 0) return null;
-
-        if (ByteOrder.nativeOrder().equals(ByteOrder.LITTLE_ENDIAN)) {
-            ip = Integer.reverseBytes(ip);
-            mask = Integer.reverseBytes(mask);
-        }
+    /**
+     * Format an IPv4 address and its prefix length as a network, e.g. 192.168.1.0/24
+     *
+     * @param address IPv4 address, as an int in network order
+     * @param prefix  prefix length
+     * @return network as a String, or null if prefix is invalid
+     */
+    public static String toNetwork(int address, int prefix) {
+        if (prefix <= 0 || prefix > 32) return null;
 
-        ip &= mask;
-        mask = netmaskToCIDR(mask);
-        if (mask == 0) return null;
+        int mask = (prefix == 32 ? 0xFFFFFFFF : ~(0xFFFFFFFF >>> prefix));
+        int ip = address & mask;
 
         int a = (ip >> 24) & 0xFF;
         int b = (ip >> 16) & 0xFF;
         int c = (ip >>  8) & 0xFF;
         int d = ip & 0xFF;
 
-        return String.format(Locale.US, "%d.%d.%d.%d/%d", a, b, c, d, mask);
+        return String.format(Locale.US, "%d.%d.%d.%d/%d", a, b, c, d, prefix);
+    }
+
+    public static boolean isLanInterface(String name) {
+        for (String prefix : LAN_INTERFACES) {
+            if (name.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    private static void addSubnet(Map<String, Set<String>> subnets, String intf, String network) {
+        Set<String> set = subnets.get(intf);
+        if (set == null) {
+            set = new HashSet<>();
+            subnets.put(intf, set);
+        }
+        set.add(network);
     }
 
     /**
-     * Provide a simple way to get subnet
+     * Get IPv4 subnets for every interface which is up, secondary addresses included.
      *
-     * @param context  Context in order to get WifiManager
-     * @return subnet as a String
+     * @return Map interface name → networks, e.g. wlan0 → 192.168.1.0/24
      */
+    public static Map<String, Set<String>> getInterfaceSubnets() {
+        Map<String, Set<String>> subnets = new HashMap<>();
+        Enumeration<NetworkInterface> interfaces;
+        try {
+            interfaces = NetworkInterface.getNetworkInterfaces();
+        } catch (SocketException e) {
+            Log.e(TAG, "Unable to list network interfaces");
+            return subnets;
+        }
+        if (interfaces == null) return subnets;
+
+        for (NetworkInterface intf : Collections.list(interfaces)) {
+            try {
+                if (!intf.isUp() || intf.isLoopback()) continue;
+            } catch (SocketException e) {
+                continue;
+            }
+            for (InterfaceAddress addr : intf.getInterfaceAddresses()) {
+                InetAddress ip = addr.getAddress();
+                if (!(ip instanceof Inet4Address)) continue;
 
-    public static String getSubnet(Context context) {
-        WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
-        return getNetwork(wifiManager.getDhcpInfo());
+                byte[] raw = ip.getAddress();
+                int address = ((raw[0] & 0xFF) << 24) | ((raw[1] & 0xFF) << 16) | ((raw[2] & 0xFF) << 8) | (raw[3] & 0xFF);
+                String network = toNetwork(address, addr.getNetworkPrefixLength());
+                if (network != null) addSubnet(subnets, intf.getName(), network);
+            }
+        }
+        return subnets;
     }
 
-    public static void getTetheredInterfaces(Context context, Set<String> set){
-        ConnectivityManager cm = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
-        for(Method method: cm.getClass().getDeclaredMethods()){
-            if(method.getName().equals("getTetheredIfaces")){
+    /**
+     * Fallback when NetworkInterface can't tell us anything: read directly connected
+     * routes from /proc/net/route, for interfaces whose link is up in /sys/class/net.
+     *
+     * @return Map interface name → networks
+     */
+    public static Map<String, Set<String>> getRouteSubnets() {
+        Map<String, Set<String>> subnets = new HashMap<>();
+        boolean littleEndian = ByteOrder.nativeOrder().equals(ByteOrder.LITTLE_ENDIAN);
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(PROC_ROUTE));
+            // skip header
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                // Iface Destination Gateway Flags RefCnt Use Metric Mask MTU Window IRTT
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 8) continue;
+
+                int destination = (int) Long.parseLong(fields[1], 16);
+                int gateway = (int) Long.parseLong(fields[2], 16);
+                int mask = (int) Long.parseLong(fields[7], 16);
+                // only directly connected networks
+                if (destination == 0 || gateway != 0 || mask == 0) continue;
+                if (!isLinkUp(fields[0])) continue;
+
+                if (littleEndian) {
+                    destination = Integer.reverseBytes(destination);
+                    mask = Integer.reverseBytes(mask);
+                }
+                String network = toNetwork(destination, Integer.bitCount(mask));
+                if (network != null) addSubnet(subnets, fields[0], network);
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "Unable to read " + PROC_ROUTE);
+        } finally {
+            if (reader != null) {
                 try {
-                    String[] intfs = (String[]) method.invoke(cm);
-                    if (intfs != null)
-                        Collections.addAll(set, intfs);
-                    break;
-                } catch (Exception e) {
-                    return;
+                    reader.close();
+                } catch (IOException e) {
                 }
             }
         }
+        return subnets;
     }
 
-    public static String getMask(String intf){
+    /**
+     * Check link state through sysfs.
+     *
+     * @param intf interface name
+     * @return true unless sysfs says the interface is down
+     */
+    public static boolean isLinkUp(String intf) {
+        File operstate = new File(new File(SYS_CLASS_NET, intf), "operstate");
+        BufferedReader reader = null;
         try {
-            NetworkInterface ntwrk = NetworkInterface.getByName(intf);
-            Iterator<InterfaceAddress> addrList = ntwrk.getInterfaceAddresses().iterator();
-            while (addrList.hasNext()) {
-                InterfaceAddress addr = addrList.next();
-                InetAddress ip = addr.getAddress();
-                if (ip instanceof Inet4Address) {
-                    String mask = ip.getHostAddress() + "/" +
-                            addr.getNetworkPrefixLength();
-                    return mask;
+            reader = new BufferedReader(new FileReader(operstate));
+            String state = reader.readLine();
+            return state == null || !state.trim().equals("down");
+        } catch (IOException e) {
+            return true;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
                 }
             }
-        } catch (SocketException e) {
-            e.printStackTrace();
         }
-        return null;
     }
-
 }
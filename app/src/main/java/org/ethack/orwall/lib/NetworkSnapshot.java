@@ -0,0 +1,113 @@
+package org.ethack.orwall.lib;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable view of network interfaces, their IPv4 subnets and tethering state.
+ * <p/>
+ * A snapshot is taken once per network event (see NetworkReceiver), and everything LAN and
+ * tethering related reads from it instead of querying the system again.
+ */
+public final class NetworkSnapshot {
+    private final static String TAG = "NetworkSnapshot";
+
+    private static NetworkSnapshot current = null;
+
+    private final Map<String, Set<String>> subnets;
+    private final Set<String> tethered;
+    private final long timestamp;
+
+    private NetworkSnapshot(Map<String, Set<String>> subnets, Set<String> tethered) {
+        Map<String, Set<String>> copy = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : subnets.entrySet()) {
+            copy.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<>(entry.getValue())));
+        }
+        this.subnets = Collections.unmodifiableMap(copy);
+        this.tethered = Collections.unmodifiableSet(new HashSet<>(tethered));
+        this.timestamp = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Get the latest snapshot, taking one if needed.
+     *
+     * @param context application context
+     * @return NetworkSnapshot
+     */
+    public static synchronized NetworkSnapshot get(Context context) {
+        if (current == null) {
+            return refresh(context);
+        }
+        return current;
+    }
+
+    /**
+     * Take a new snapshot.
+     *
+     * @param context application context
+     * @return NetworkSnapshot
+     */
+    public static synchronized NetworkSnapshot refresh(Context context) {
+        return refresh(context, NetworkHelper.getTetheredInterfaces(context));
+    }
+
+    /**
+     * Take a new snapshot when we already know tethered interfaces (e.g. from a broadcast).
+     *
+     * @param context  application context
+     * @param tethered tethered interface names
+     * @return NetworkSnapshot
+     */
+    public static synchronized NetworkSnapshot refresh(Context context, Set<String> tethered) {
+        Map<String, Set<String>> subnets = NetworkHelper.getInterfaceSubnets();
+        if (subnets.isEmpty()) {
+            Log.d(TAG, "No interface found, falling back to routing table");
+            subnets = NetworkHelper.getRouteSubnets();
+        }
+        current = new NetworkSnapshot(subnets, tethered);
+        return current;
+    }
+
+    public Set<String> getInterfaces() {
+        return this.subnets.keySet();
+    }
+
+    public Set<String> getSubnets(String intf) {
+        Set<String> set = this.subnets.get(intf);
+        return (set == null ? Collections.<String>emptySet() : set);
+    }
+
+    public Set<String> getTethered() {
+        return this.tethered;
+    }
+
+    public boolean isTether() {
+        return !this.tethered.isEmpty();
+    }
+
+    /**
+     * Local subnets: Wi-Fi, Ethernet, tethering and hotspot interfaces.
+     *
+     * @return Set of networks, e.g. 192.168.1.0/24
+     */
+    public Set<String> getLanSubnets() {
+        Set<String> lan = new HashSet<>();
+        for (Map.Entry<String, Set<String>> entry : this.subnets.entrySet()) {
+            if (NetworkHelper.isLanInterface(entry.getKey()) || this.tethered.contains(entry.getKey())) {
+                lan.addAll(entry.getValue());
+            }
+        }
+        return lan;
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+}
@@ -0,0 +1,110 @@
+package org.ethack.orwall.lib;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.ethack.orwall.BackgroundProcess;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Drops rules of apps that aren't installed anymore.
+ * <p/>
+ * Package events only push back a short alarm, so that a storm of them (mass uninstall,
+ * user removal) ends up in one pass. That pass diffs installed UIDs against NatRules, and
+ * removes every stale rule at once. It also runs at boot, for apps removed while orWall
+ * wasn't running.
+ */
+public class PackageReconciler {
+    private final static String TAG = "PackageReconciler";
+    private final static long DELAY = 5 * 1000;
+    // below it: system UIDs (media, shell...), they never go away
+    private final static int FIRST_APPLICATION_UID = 10000;
+    private final static int PER_USER_RANGE = 100000;
+
+    private static PendingIntent getRunIntent(Context context) {
+        Intent intent = new Intent(context, BackgroundProcess.class);
+        // PendingIntents only differ by action, not by extras
+        intent.setAction(Constants.ACTION_RECONCILE_PACKAGES);
+        intent.putExtra(Constants.ACTION, Constants.ACTION_RECONCILE_PACKAGES);
+        return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Reconcile a few seconds from now. Each call pushes the pass back.
+     *
+     * @param context application context
+     */
+    public static void schedule(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + DELAY, getRunIntent(context));
+    }
+
+    /**
+     * Remove stale rules from the database
+     *
+     * @param context application context
+     * @return removed rules
+     */
+    public static List<AppRule> prune(Context context) {
+        Set<Long> installed = new HashSet<>();
+        for (ApplicationInfo info : context.getPackageManager().getInstalledApplications(PackageManager.GET_META_DATA)) {
+            installed.add((long) info.uid);
+        }
+
+        NatRules natRules = new NatRules(context);
+        List<AppRule> stale = new ArrayList<>();
+        for (AppRule rule : natRules.getAllRules()) {
+            long uid = rule.getAppUID();
+            if (uid % PER_USER_RANGE >= FIRST_APPLICATION_UID && !installed.contains(uid)) {
+                stale.add(rule);
+            }
+        }
+        if (stale.isEmpty()) return stale;
+
+        // an empty list would mean the package manager is not ready: don't wipe everything
+        if (installed.isEmpty()) {
+            Log.e(TAG, "No installed application found, skipping");
+            return new ArrayList<>();
+        }
+
+        List<Long> uids = new ArrayList<>(stale.size());
+        for (AppRule rule : stale) {
+            uids.add(rule.getAppUID());
+            RuleScheduler.cancel(context, RuleScheduler.TYPE_APP, rule.getAppUID());
+        }
+        natRules.removeAppsFromRules(uids);
+        return stale;
+    }
+
+    /**
+     * Remove stale rules from the database, then from iptables in one batch.
+     *
+     * @param context  application context
+     * @param iptables Iptables instance
+     */
+    public static void run(Context context, Iptables iptables) {
+        List<AppRule> stale = prune(context);
+        if (stale.isEmpty()) return;
+
+        for (AppRule rule : stale) {
+            Log.d(TAG, "Removed rule of " + rule.getPkgName() + " (" + rule.getAppUID() + ")");
+        }
+        // paused chains are live too: the swap keeps their bypass rules, see Iptables.compileState()
+        boolean live = Preferences.isOrwallEnabled(context) || Preferences.isOrwallPaused(context);
+        if (live && iptables.haveBooted()) {
+            // whole ruleset swap: one restore, whatever the number of removed apps
+            iptables.reapply();
+        }
+        Iptables.updateInitScript(context, iptables);
+    }
+}
@@ -4,6 +4,8 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.support.annotation.Nullable;
 
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 public final class Preferences {
@@ -17,21 +19,41 @@ public final class Preferences {
     public final static String PREF_KEY_TETHER_INTFS = "tether_interfaces";
     public final static String PREF_TRANS_PORT = "proxy_transport";
     public final static String PREF_DNS_PORT = "proxy_dns";
+    public final static String PREF_KEY_DNS_CACHE_ENABLED = "enable_dns_cache";
+    public final static String PREF_DNS_CACHE_PORT = "proxy_dns_cache";
     public final static String PREF_KEY_ADB_ENABLED = "enable_adb";
     public final static String PREF_KEY_SSH_ENABLED = "enable_ssh";
+    public final static String PREF_KEY_REJECT_ENABLED = "reject_blocked";
+    public final static String PREF_KEY_OPTIMIZE_ORDER = "optimize_rule_order";
+    public final static String PREF_KEY_COMMENT_SIDE_TABLE = "comments_side_table";
     public final static String PREF_KEY_ENFORCE_INIT = "enforce_init_script";
     //public final static String PREF_KEY_DISABLE_INIT = "deactivate_init_script";
     public final static String PREF_KEY_BROWSER_GRACETIME = "browser_gracetime";
+    public final static String PREF_KEY_SIP_GRACETIME = "sip_gracetime";
+    public final static String PREF_KEY_APP_GRACETIME = "app_gracetime";
     //public final static String PREF_KEY_IPT_SUPPORTS_COMMENTS = "ipt_comments";
     public final static String PREF_KEY_ORWALL_ENABLED = "orwall_enabled";
     public final static String PREF_KEY_CURRENT_SUBNET = "current_subnet";
     public final static String PREF_KEY_HIDE_PRESS_HINT = "hide_press_hint";
     public final static String PREF_KEY_TETHER_NETWORK = "tether_net_";
+    public final static String PREF_KEY_LAN_SUBNETS = "lan_subnets";
+    public final static String PREF_KEY_TOR_DOWN = "tor_down";
+    public final static String PREF_KEY_ORWALL_PAUSED = "orwall_paused";
+    public final static String PREF_KEY_CURRENT_PROFILE = "current_profile";
+    public final static String PREF_KEY_SCHEDULED_RULES = "scheduled_rules";
+    public final static String PREF_KEY_SCHEDULED_RULES_ANCHOR = "scheduled_rules_anchor";
+    public final static String PREF_KEY_BOOT_MARKER = "boot_marker";
+    public final static String PREF_KEY_INIT_DEPLOYED = "init_script_deployed";
+    public final static String PREF_KEY_SCRIPTS_VERSION = "scripts_version";
+    public final static String PREF_KEY_LAST_APPLY = "last_apply";
 
     public static long ORBOT_TRANSPROXY = 9040;
     public static long ORBOT_DNS_PROXY = 5400;
+    public static long DNS_CACHE_PORT = 5450;
 
     public final static long BROWSER_GRACETIME = 5;
+    public final static long SIP_GRACETIME = 0;
+    public final static long APP_GRACETIME = 60;
 
     private static boolean getBoolean(Context context, String key, boolean def){
         return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).getBoolean(key, def);
@@ -99,8 +121,11 @@ public final class Preferences {
 
     public static void cleanIptablesPreferences(Context context){
         SharedPreferences sharedPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
-        sharedPreferences.edit().remove(PREF_KEY_CURRENT_SUBNET).apply();
         sharedPreferences.edit().remove(PREF_KEY_TETHER_INTFS).apply();
+        sharedPreferences.edit().remove(PREF_KEY_LAN_SUBNETS).apply();
+        sharedPreferences.edit().remove(PREF_KEY_TOR_DOWN).apply();
+        sharedPreferences.edit().remove(PREF_KEY_ORWALL_PAUSED).apply();
+        removeLegacyLanSubnets(context);
     }
 
     public static String getTransPort(Context context){
@@ -111,6 +136,14 @@ public final class Preferences {
         return getString(context, PREF_DNS_PORT, String.valueOf(ORBOT_DNS_PROXY));
     }
 
+    public static boolean isDNSCacheEnabled(Context context){
+        return getBoolean(context, PREF_KEY_DNS_CACHE_ENABLED, false);
+    }
+
+    public static String getDNSCachePort(Context context){
+        return getString(context, PREF_DNS_CACHE_PORT, String.valueOf(DNS_CACHE_PORT));
+    }
+
     public static boolean isADBEnabled(Context context){
         return getBoolean(context, PREF_KEY_ADB_ENABLED, false);
     }
@@ -119,6 +152,18 @@ public final class Preferences {
         return getBoolean(context, PREF_KEY_SSH_ENABLED, false);
     }
 
+    public static boolean isRejectEnabled(Context context){
+        return getBoolean(context, PREF_KEY_REJECT_ENABLED, true);
+    }
+
+    public static boolean isOptimizeOrderEnabled(Context context){
+        return getBoolean(context, PREF_KEY_OPTIMIZE_ORDER, false);
+    }
+
+    public static boolean isCommentSideTable(Context context){
+        return getBoolean(context, PREF_KEY_COMMENT_SIDE_TABLE, false);
+    }
+
     public static boolean isEnforceInitScript(Context context){
         return getBoolean(context, PREF_KEY_ENFORCE_INIT, true);
     }
@@ -131,6 +176,14 @@ public final class Preferences {
         return getString(context, PREF_KEY_BROWSER_GRACETIME, String.valueOf(BROWSER_GRACETIME));
     }
 
+    public static String getSIPGraceTime(Context context){
+        return getString(context, PREF_KEY_SIP_GRACETIME, String.valueOf(SIP_GRACETIME));
+    }
+
+    public static String getAppGraceTime(Context context){
+        return getString(context, PREF_KEY_APP_GRACETIME, String.valueOf(APP_GRACETIME));
+    }
+
     public static boolean isOrwallEnabled(Context context){
         return getBoolean(context, PREF_KEY_ORWALL_ENABLED, true);
     }
@@ -139,27 +192,120 @@ public final class Preferences {
         putBoolean(context, PREF_KEY_ORWALL_ENABLED, value);
     }
 
-    public static String getCurrentSubnet(Context context){
-        return getString(context, PREF_KEY_CURRENT_SUBNET, null);
+    public static Set<String> getLanSubnets(Context context){
+        return getStringSet(context, PREF_KEY_LAN_SUBNETS, null);
     }
 
-    public static void setCurrentSubnet(Context context, String value){
-        setString(context, PREF_KEY_CURRENT_SUBNET, value);
+    public static void setLanSubnets(Context context, Set<String> value){
+        setStringSet(context, PREF_KEY_LAN_SUBNETS, value);
     }
 
-    public static boolean isHidePressHint(Context context){
-        return getBoolean(context, PREF_KEY_HIDE_PRESS_HINT, false);
+    /**
+     * Subnets installed by older versions: the Wi-Fi one and one per tethered interface.
+     *
+     * @param context application context
+     * @return Set of subnets, possibly empty
+     */
+    public static Set<String> getLegacyLanSubnets(Context context){
+        Set<String> subnets = new HashSet<>();
+        SharedPreferences sharedPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> entry : sharedPreferences.getAll().entrySet()) {
+            String key = entry.getKey();
+            if ((key.equals(PREF_KEY_CURRENT_SUBNET) || key.startsWith(PREF_KEY_TETHER_NETWORK)) && entry.getValue() instanceof String) {
+                subnets.add((String) entry.getValue());
+            }
+        }
+        return subnets;
     }
 
-    public static void setHidePressHint(Context context, boolean value){
-        putBoolean(context, PREF_KEY_HIDE_PRESS_HINT, value);
+    public static void removeLegacyLanSubnets(Context context){
+        SharedPreferences sharedPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        for (String key : sharedPreferences.getAll().keySet()) {
+            if (key.equals(PREF_KEY_CURRENT_SUBNET) || key.startsWith(PREF_KEY_TETHER_NETWORK)) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    public static int getScriptsVersion(Context context){
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).getInt(PREF_KEY_SCRIPTS_VERSION, -1);
+    }
+
+    public static void setScriptsVersion(Context context, int value){
+        context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit().putInt(PREF_KEY_SCRIPTS_VERSION, value).apply();
+    }
+
+    public static String getInitScriptDeployed(Context context){
+        return getString(context, PREF_KEY_INIT_DEPLOYED, null);
+    }
+
+    public static void setInitScriptDeployed(Context context, String value){
+        setString(context, PREF_KEY_INIT_DEPLOYED, value);
+    }
+
+    public static String getBootMarker(Context context){
+        return getString(context, PREF_KEY_BOOT_MARKER, null);
     }
 
-    public static String getTetherNetwork(Context context, String intf){
-        return getString(context, PREF_KEY_TETHER_NETWORK + intf, null);
+    public static void setBootMarker(Context context, String value){
+        setString(context, PREF_KEY_BOOT_MARKER, value);
     }
 
-    public static void setTetherNetwork(Context context, String intf, String network){
-        setString(context, PREF_KEY_TETHER_NETWORK + intf, network);
+    public static String getLastApply(Context context){
+        return getString(context, PREF_KEY_LAST_APPLY, null);
+    }
+
+    public static void setLastApply(Context context, String value){
+        setString(context, PREF_KEY_LAST_APPLY, value);
+    }
+
+    public static Set<String> getScheduledRules(Context context){
+        return getStringSet(context, PREF_KEY_SCHEDULED_RULES, new HashSet<String>());
+    }
+
+    public static void setScheduledRules(Context context, Set<String> value){
+        setStringSet(context, PREF_KEY_SCHEDULED_RULES, value);
+    }
+
+    public static String getScheduledRulesAnchor(Context context){
+        return getString(context, PREF_KEY_SCHEDULED_RULES_ANCHOR, "");
+    }
+
+    public static void setScheduledRulesAnchor(Context context, String value){
+        setString(context, PREF_KEY_SCHEDULED_RULES_ANCHOR, value);
+    }
+
+    public static String getCurrentProfile(Context context){
+        return getString(context, PREF_KEY_CURRENT_PROFILE, null);
+    }
+
+    public static void setCurrentProfile(Context context, String value){
+        setString(context, PREF_KEY_CURRENT_PROFILE, value);
+    }
+
+    public static boolean isOrwallPaused(Context context){
+        return getBoolean(context, PREF_KEY_ORWALL_PAUSED, false);
+    }
+
+    public static void setOrwallPaused(Context context, boolean value){
+        putBoolean(context, PREF_KEY_ORWALL_PAUSED, value);
+    }
+
+    public static boolean isTorDown(Context context){
+        return getBoolean(context, PREF_KEY_TOR_DOWN, false);
+    }
+
+    public static void setTorDown(Context context, boolean value){
+        putBoolean(context, PREF_KEY_TOR_DOWN, value);
+    }
+
+    public static boolean isHidePressHint(Context context){
+        return getBoolean(context, PREF_KEY_HIDE_PRESS_HINT, false);
+    }
+
+    public static void setHidePressHint(Context context, boolean value){
+        putBoolean(context, PREF_KEY_HIDE_PRESS_HINT, value);
     }
 }
@@ -0,0 +1,167 @@
+package org.ethack.orwall.lib;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import org.ethack.orwall.database.natDBHelper;
+import org.sufficientlysecure.rootcommands.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Named policy profiles: a copy of app rules, and the ruleset compiled out of them.
+ * Switching profiles applies the stored ruleset at once; it is only compiled again
+ * if something it depends on changed (see Iptables.getFingerprint()).
+ */
+public class Profiles {
+    private final static String TAG = "Profiles";
+    private final static String RULE_COLUMNS = String.format("%s, %s, %s, %s, %s",
+            natDBHelper.COLUMN_APPUID,
+            natDBHelper.COLUMN_APPNAME,
+            natDBHelper.COLUMN_ONIONTYPE,
+            natDBHelper.COLUMN_LOCALHOST,
+            natDBHelper.COLUMN_LOCALNETWORK
+    );
+    private natDBHelper dbHelper;
+    private Context context;
+
+    public Profiles(Context context) {
+        this.dbHelper = new natDBHelper(context);
+        this.context = context;
+    }
+
+    public ArrayList<String> getNames() {
+        ArrayList<String> list = new ArrayList<>();
+        SQLiteDatabase db = this.dbHelper.getReadableDatabase();
+        String[] selection = {natDBHelper.COLUMN_PROFILE};
+        Cursor cursor = db.query(natDBHelper.PROFILES_TABLE_NAME, selection, null, null, null, null, natDBHelper.COLUMN_PROFILE);
+        while (cursor.moveToNext()) {
+            list.add(cursor.getString(0));
+        }
+        cursor.close();
+        db.close();
+        return list;
+    }
+
+    /**
+     * Save current app rules as a profile, and compile it.
+     *
+     * @param name     profile name
+     * @param iptables Iptables instance
+     */
+    public void save(String name, Iptables iptables) {
+        ArrayList<String> compiled = iptables.compile(new NatRules(context).getAllRules());
+
+        SQLiteDatabase db = this.dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(natDBHelper.PROFILE_RULES_TABLE_NAME, natDBHelper.COLUMN_PROFILE + "=?", new String[]{name});
+            db.execSQL(String.format("INSERT INTO %s(%s, %s) SELECT ?, %s FROM %s;",
+                            natDBHelper.PROFILE_RULES_TABLE_NAME, natDBHelper.COLUMN_PROFILE, RULE_COLUMNS,
+                            RULE_COLUMNS, natDBHelper.NAT_TABLE_NAME),
+                    new Object[]{name});
+            store(db, name, iptables.getFingerprint(), compiled);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.close();
+        Preferences.setCurrentProfile(context, name);
+    }
+
+    public void remove(String name) {
+        SQLiteDatabase db = this.dbHelper.getWritableDatabase();
+        db.delete(natDBHelper.PROFILE_RULES_TABLE_NAME, natDBHelper.COLUMN_PROFILE + "=?", new String[]{name});
+        db.delete(natDBHelper.PROFILES_TABLE_NAME, natDBHelper.COLUMN_PROFILE + "=?", new String[]{name});
+        db.close();
+    }
+
+    private void store(SQLiteDatabase db, String name, String fingerprint, ArrayList<String> compiled) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(natDBHelper.COLUMN_PROFILE, name);
+        contentValues.put(natDBHelper.COLUMN_FINGERPRINT, fingerprint);
+        contentValues.put(natDBHelper.COLUMN_COMPILED, TextUtils.join("\n", compiled));
+        db.insertWithOnConflict(natDBHelper.PROFILES_TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    private ArrayList<AppRule> getRules(SQLiteDatabase db, String name) {
+        ArrayList<AppRule> list = new ArrayList<>();
+        Cursor cursor = db.rawQuery(String.format("SELECT %s FROM %s WHERE %s=?;",
+                        RULE_COLUMNS, natDBHelper.PROFILE_RULES_TABLE_NAME, natDBHelper.COLUMN_PROFILE),
+                new String[]{name});
+        while (cursor.moveToNext()) {
+            list.add(new AppRule(
+                    true,
+                    cursor.getString(1),
+                    cursor.getLong(0),
+                    cursor.getString(2),
+                    cursor.getLong(3) == 1,
+                    cursor.getLong(4) == 1
+            ));
+        }
+        cursor.close();
+        return list;
+    }
+
+    /**
+     * Switch to a profile: its app rules replace current ones, and its ruleset is applied at once.
+     *
+     * @param name     profile name
+     * @param iptables Iptables instance
+     * @return false if there is no such profile
+     */
+    public boolean apply(String name, Iptables iptables) {
+        SQLiteDatabase db = this.dbHelper.getWritableDatabase();
+        String[] selection = {natDBHelper.COLUMN_FINGERPRINT, natDBHelper.COLUMN_COMPILED};
+        Cursor cursor = db.query(natDBHelper.PROFILES_TABLE_NAME, selection,
+                natDBHelper.COLUMN_PROFILE + "=?", new String[]{name}, null, null, null);
+        if (!cursor.moveToFirst()) {
+            cursor.close();
+            db.close();
+            Log.e(TAG, "No such profile: " + name);
+            return false;
+        }
+        String fingerprint = cursor.getString(0);
+        String compiledRules = cursor.getString(1);
+        cursor.close();
+
+        ArrayList<String> compiled;
+        String current = iptables.getFingerprint();
+        if (current.equals(fingerprint) && compiledRules != null) {
+            compiled = new ArrayList<>(Arrays.asList(compiledRules.split("\n")));
+        } else {
+            Log.d(TAG, "Environment changed, compiling " + name + " again");
+            compiled = iptables.compile(getRules(db, name));
+            store(db, name, current, compiled);
+        }
+
+        db.beginTransaction();
+        try {
+            db.delete(natDBHelper.NAT_TABLE_NAME, null, null);
+            db.execSQL(String.format("INSERT INTO %s(%s) SELECT %s FROM %s WHERE %s=?;",
+                            natDBHelper.NAT_TABLE_NAME, RULE_COLUMNS,
+                            RULE_COLUMNS, natDBHelper.PROFILE_RULES_TABLE_NAME, natDBHelper.COLUMN_PROFILE),
+                    new Object[]{name});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.close();
+        Preferences.setCurrentProfile(context, name);
+
+        // disabled orWall: new rules will be applied when it gets enabled
+        boolean paused = Preferences.isOrwallPaused(context);
+        if (!Preferences.isOrwallEnabled(context) && !paused) return true;
+
+        // shadow chains carry the bypass rules if paused, and so does a full reload
+        if (!iptables.applyCompiled(compiled)) {
+            Log.e(TAG, "Unable to apply " + name + ", falling back to a full reload");
+            iptables.reload();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,61 @@
+package org.ethack.orwall.lib;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-app side table for rule comments, when they are kept out of the kernel.
+ * Only rules actually applied are tracked. It lives as long as the app process: rules are
+ * re-applied, and annotated again, at boot. See DiagnosticsProvider for a dump.
+ */
+public class RuleAnnotations {
+    private final static Pattern COMMENT = Pattern.compile(" -m comment --comment \"([^\"]*)\"");
+    private final static Pattern ACTION = Pattern.compile("^(-t (\\S+) )?-([AID]) (\\S+)( [0-9]+)? (.*)$");
+
+    private final static Map<String, String> annotations = new LinkedHashMap<>();
+
+    /**
+     * Remove the comment from a rule, and keep track of it if the rule is being applied.
+     *
+     * @param rule   iptables rule
+     * @param record true if the rule goes to the kernel now, false if it is only generated
+     * @return rule without any comment
+     */
+    public static String strip(final String rule, final boolean record) {
+        Matcher comment = COMMENT.matcher(rule);
+        if (!comment.find()) return rule;
+
+        String stripped = rule.substring(0, comment.start()) + rule.substring(comment.end());
+        if (!record) return stripped;
+        Matcher action = ACTION.matcher(stripped);
+        if (action.matches()) {
+            String key = String.format("%s %s %s",
+                    (action.group(2) == null ? "filter" : action.group(2)), action.group(4), action.group(6));
+            synchronized (annotations) {
+                if (action.group(3).equals("D")) {
+                    annotations.remove(key);
+                } else {
+                    annotations.put(key, comment.group(1));
+                }
+            }
+        }
+        return stripped;
+    }
+
+    /**
+     * @return copy of known annotations, "table chain rule" to comment
+     */
+    public static Map<String, String> get() {
+        synchronized (annotations) {
+            return new LinkedHashMap<>(annotations);
+        }
+    }
+
+    public static void clear() {
+        synchronized (annotations) {
+            annotations.clear();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.ethack.orwall.lib;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single writer for iptables: every change, whatever thread it comes from, is queued here
+ * and applied by one thread, in submission order.
+ * <p/>
+ * Submitting never blocks: tasks go into a lock-free queue, and the first submitter finding the
+ * writer idle starts it. The writer drains the queue with one Iptables instance (one root shell,
+ * closed once the queue is empty) per burst, so interleaved inserts and deletes from receivers,
+ * UI and services can't race.
+ */
+public class RuleExecutor {
+    private final static String TAG = "RuleExecutor";
+
+    /**
+     * A change to apply. Runs on the writer thread.
+     */
+    public interface Task {
+        void run(Iptables iptables);
+    }
+
+    /**
+     * Called on the main thread once a task was applied
+     */
+    public interface Callback {
+        void onDone();
+    }
+
+    private static class Pending {
+        final Task task;
+        final Callback callback;
+
+        Pending(Task task, Callback callback) {
+            this.task = task;
+            this.callback = callback;
+        }
+    }
+
+    private static final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean running = new AtomicBoolean(false);
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static volatile Thread writer = null;
+
+    /**
+     * Queue a change
+     * @param context  any context
+     * @param task     change to apply
+     * @param callback called on the main thread once applied, may be null
+     */
+    public static void submit(Context context, Task task, Callback callback) {
+        queue.offer(new Pending(task, callback));
+        start(context.getApplicationContext());
+    }
+
+    /**
+     * Queue a change
+     * @param context any context
+     * @param task    change to apply
+     */
+    public static void submit(Context context, Task task) {
+        submit(context, task, null);
+    }
+
+    /**
+     * Queue a change, and wait until it's applied — along with everything queued before it.
+     * Meant for threads that are allowed to block, like IntentService workers.
+     * @param context any context
+     * @param task    change to apply
+     */
+    public static void await(Context context, final Task task) {
+        if (Thread.currentThread() == writer) {
+            // already on the writer, from within a task: waiting would dead-lock
+            Iptables iptables = new Iptables(context.getApplicationContext());
+            try {
+                task.run(iptables);
+            } finally {
+                iptables.close();
+            }
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        queue.offer(new Pending(new Task() {
+            @Override
+            public void run(Iptables iptables) {
+                try {
+                    task.run(iptables);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }, null));
+        start(context.getApplicationContext());
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while waiting for rules");
+        }
+    }
+
+    private static void start(final Context context) {
+        if (queue.isEmpty() || !running.compareAndSet(false, true)) return;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain(context);
+            }
+        }, TAG);
+        writer = thread;
+        thread.start();
+    }
+
+    private static void drain(Context context) {
+        while (true) {
+            Iptables iptables = new Iptables(context);
+            Pending pending;
+            while ((pending = queue.poll()) != null) {
+                try {
+                    pending.task.run(iptables);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Task failed", e);
+                }
+                if (pending.callback != null) {
+                    final Callback callback = pending.callback;
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onDone();
+                        }
+                    });
+                }
+            }
+            // an idle root shell is a process kept for nothing
+            iptables.close();
+            writer = null;
+            running.set(false);
+            // a task queued between the last poll and now would be left behind
+            if (queue.isEmpty() || !running.compareAndSet(false, true)) return;
+            writer = Thread.currentThread();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.ethack.orwall.lib;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Optimization passes over a list of iptables rules, before they reach the kernel:
+ * - duplicate rules are dropped;
+ * - rules that can't be reached, because an earlier terminal rule of the same chain
+ *   matches a superset of their packets, are dropped;
+ * - consecutive rules only differing by a single port are merged using multiport.
+ *
+ * Only appended rules (-A) are considered; anything else (-N, -P, -D...) stays in place.
+ */
+public class RuleOptimizer {
+    // multiport accepts up to 15 ports
+    private final static int MAX_PORTS = 15;
+
+    private final static Pattern APPEND = Pattern.compile("^(-t (\\S+) )?-A (\\S+) (.*)$");
+    private final static Pattern PORT = Pattern.compile(" --([ds])port (\\d+)");
+    private final static Pattern TOKEN = Pattern.compile("\"[^\"]*\"|\\S+");
+
+    private final static Set<String> TERMINAL = new HashSet<>();
+    static {
+        TERMINAL.add("ACCEPT");
+        TERMINAL.add("DROP");
+        TERMINAL.add("REJECT");
+        TERMINAL.add("REDIRECT");
+        TERMINAL.add("RETURN");
+    }
+
+    /**
+     * Parsed -A rule: chain, match options and target.
+     */
+    private static class Spec {
+        String chain;
+        Set<String> matches = new HashSet<>();
+        String target;
+        boolean stateful;
+    }
+
+    private static Spec parse(String rule) {
+        Matcher matcher = APPEND.matcher(rule);
+        if (!matcher.matches()) return null;
+
+        Spec spec = new Spec();
+        spec.chain = (matcher.group(2) == null ? "filter" : matcher.group(2)) + " " + matcher.group(3);
+
+        List<String> tokens = new ArrayList<>();
+        Matcher token = TOKEN.matcher(matcher.group(4));
+        while (token.find()) tokens.add(token.group());
+
+        boolean inTarget = false;
+        String negate = "";
+        int i = 0;
+        while (i < tokens.size()) {
+            String option = tokens.get(i++);
+            if (option.equals("!")) {
+                negate = "! ";
+                continue;
+            }
+            StringBuilder value = new StringBuilder();
+            while (i < tokens.size() && !tokens.get(i).startsWith("-") && !tokens.get(i).equals("!")) {
+                value.append(' ').append(tokens.get(i++));
+            }
+            if (option.equals("-j")) {
+                spec.target = value.toString().trim();
+                inTarget = true;
+            } else if (option.equals("-m") || option.equals("--comment")) {
+                // modules and comments don't match anything by themselves
+            } else if (inTarget && !option.equals("--limit") && !option.equals("--limit-burst")) {
+                spec.target += " " + option + value;
+            } else {
+                spec.matches.add(negate + option + value);
+                if (option.startsWith("--limit") || option.equals("--every") || option.equals("--probability")) {
+                    spec.stateful = true;
+                }
+            }
+            negate = "";
+        }
+        return spec;
+    }
+
+    /**
+     * Drop exact duplicates of an earlier appended rule. Stateful rules (limit, nth...) are
+     * kept, as each copy holds its own state.
+     */
+    public static List<String> dedupe(List<String> rules) {
+        Set<String> seen = new HashSet<>();
+        List<String> result = new ArrayList<>(rules.size());
+        for (String rule : rules) {
+            Spec spec = parse(rule);
+            if (spec == null) {
+                if (!APPEND.matcher(rule).matches()) {
+                    // chains may be flushed or rules deleted: start over
+                    seen.clear();
+                }
+            } else if (!spec.stateful && !seen.add(rule)) {
+                continue;
+            }
+            result.add(rule);
+        }
+        return result;
+    }
+
+    /**
+     * Drop appended rules shadowed by an earlier terminal rule of the same chain.
+     */
+    public static List<String> removeShadowed(List<String> rules) {
+        List<Spec> shadows = new ArrayList<>();
+        List<String> result = new ArrayList<>(rules.size());
+        for (String rule : rules) {
+            Spec spec = parse(rule);
+            if (spec == null) {
+                if (!APPEND.matcher(rule).matches()) {
+                    // chains may be flushed or created: start over
+                    shadows.clear();
+                }
+                result.add(rule);
+                continue;
+            }
+            boolean shadowed = false;
+            for (Spec shadow : shadows) {
+                if (shadow.chain.equals(spec.chain) && spec.matches.containsAll(shadow.matches)) {
+                    shadowed = true;
+                    break;
+                }
+            }
+            if (shadowed) continue;
+
+            result.add(rule);
+            if (spec.target != null && !spec.stateful && TERMINAL.contains(spec.target.split(" ")[0])) {
+                shadows.add(spec);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merge consecutive appended rules only differing by their --dport or --sport.
+     */
+    public static List<String> mergePorts(List<String> rules) {
+        List<String> result = new ArrayList<>(rules.size());
+        String key = null;
+        String kind = null;
+        LinkedHashSet<String> ports = new LinkedHashSet<>();
+        String first = null;
+
+        for (String rule : rules) {
+            Matcher port = PORT.matcher(rule);
+            String ruleKey = null;
+            if (APPEND.matcher(rule).matches() && port.find()) {
+                String remaining = rule.substring(port.end());
+                // a single port option only
+                if (!PORT.matcher(remaining).find()) {
+                    ruleKey = rule.substring(0, port.start()) + " --" + port.group(1) + "port *" + remaining;
+                }
+            }
+
+            if (ruleKey != null && ruleKey.equals(key) && ports.size() < MAX_PORTS) {
+                ports.add(port.group(2));
+                continue;
+            }
+
+            if (key != null) result.add(merged(first, key, kind, ports));
+            key = null;
+            ports.clear();
+            if (ruleKey != null) {
+                key = ruleKey;
+                kind = port.group(1);
+                first = rule;
+                ports.add(port.group(2));
+            } else {
+                result.add(rule);
+            }
+        }
+        if (key != null) result.add(merged(first, key, kind, ports));
+        return result;
+    }
+
+    private static String merged(String first, String key, String kind, Set<String> ports) {
+        if (ports.size() == 1) return first;
+        StringBuilder list = new StringBuilder();
+        for (String port : ports) {
+            if (list.length() > 0) list.append(',');
+            list.append(port);
+        }
+        return key.replace(" --" + kind + "port *", " -m multiport --" + kind + "ports " + list);
+    }
+
+    /**
+     * Run all passes.
+     *
+     * @param rules rules, in order
+     * @return optimized rules, in order
+     */
+    public static List<String> optimize(List<String> rules) {
+        return mergePorts(removeShadowed(dedupe(rules)));
+    }
+}
@@ -0,0 +1,188 @@
+package org.ethack.orwall.lib;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.ethack.orwall.BackgroundProcess;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Moves most used per-app rules to the top of ow_OUTPUT, based on iptables counters.
+ *
+ * Only contiguous rules matching a single --uid-owner are moved. A packet has one owner,
+ * so rules of different UIDs can't both match it and their order doesn't matter, whatever
+ * their target. Rules of a same UID keep their relative order, and any other rule
+ * (fast path, LAN, tethering, Tor-down jump...) stays where it is.
+ */
+public class RuleOrderOptimizer {
+    private final static String TAG = "RuleOrderOptimizer";
+    private final static String CHAIN = "ow_OUTPUT";
+    private final static String[] TABLES = {"filter", "nat"};
+
+    private final static Pattern COUNTED_RULE = Pattern.compile("^\\[(\\d+):(\\d+)\\] -A (\\S+) .*$");
+    private final static Pattern UID_OWNER = Pattern.compile("(! )?--uid-owner (\\d+)(-\\d+)?");
+
+    private static PendingIntent getOptimizeIntent(Context context) {
+        Intent intent = new Intent(context, BackgroundProcess.class);
+        // PendingIntents only differ by action, not by extras
+        intent.setAction(Constants.ACTION_OPTIMIZE_RULES);
+        intent.putExtra(Constants.ACTION, Constants.ACTION_OPTIMIZE_RULES);
+        return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Start periodic reordering. It doesn't wake the device up.
+     *
+     * @param context application context
+     */
+    public static void schedule(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(
+                AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_FIFTEEN_MINUTES,
+                AlarmManager.INTERVAL_FIFTEEN_MINUTES,
+                getOptimizeIntent(context)
+        );
+    }
+
+    public static void cancel(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(getOptimizeIntent(context));
+    }
+
+    private static String getUid(String rule) {
+        Matcher matcher = UID_OWNER.matcher(rule);
+        if (!matcher.find()) return null;
+        // negated or range matches aren't disjoint from others
+        if (matcher.group(1) != null || matcher.group(3) != null) return null;
+        String uid = matcher.group(2);
+        // more than one owner match: don't touch it
+        if (matcher.find()) return null;
+        return uid;
+    }
+
+    private static long getPackets(String rule) {
+        Matcher matcher = COUNTED_RULE.matcher(rule);
+        return (matcher.matches() ? Long.valueOf(matcher.group(1)) : 0);
+    }
+
+    /**
+     * Reorder a chain content.
+     *
+     * @param rules chain rules, as dumped by iptables-save -c
+     * @return reordered rules
+     */
+    public static List<String> reorder(List<String> rules) {
+        List<String> result = new ArrayList<>(rules.size());
+        int i = 0;
+        while (i < rules.size()) {
+            if (getUid(rules.get(i)) == null) {
+                result.add(rules.get(i));
+                i++;
+                continue;
+            }
+
+            // group the run by UID, keeping first-seen order for ties
+            LinkedHashMap<String, List<String>> groups = new LinkedHashMap<>();
+            final Map<String, Long> hits = new HashMap<>();
+            String uid;
+            while (i < rules.size() && (uid = getUid(rules.get(i))) != null) {
+                if (!groups.containsKey(uid)) {
+                    groups.put(uid, new ArrayList<String>());
+                    hits.put(uid, 0L);
+                }
+                groups.get(uid).add(rules.get(i));
+                hits.put(uid, hits.get(uid) + getPackets(rules.get(i)));
+                i++;
+            }
+
+            List<String> uids = new ArrayList<>(groups.keySet());
+            // stable sort
+            Collections.sort(uids, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    long diff = hits.get(b) - hits.get(a);
+                    return (diff > 0 ? 1 : (diff < 0 ? -1 : 0));
+                }
+            });
+            for (String key : uids) {
+                result.addAll(groups.get(key));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Build an iptables-restore --noflush payload reordering ow_OUTPUT chains.
+     *
+     * @param saved iptables-save -c output
+     * @return payload, or null if nothing has to move
+     */
+    public static String optimize(String saved) {
+        Map<String, List<String>> chains = new HashMap<>();
+        String table = null;
+        for (String line : saved.split("\n")) {
+            if (line.startsWith("*")) {
+                table = line.substring(1).trim();
+                continue;
+            }
+            Matcher matcher = COUNTED_RULE.matcher(line);
+            if (table != null && matcher.matches() && matcher.group(3).equals(CHAIN)) {
+                if (!chains.containsKey(table)) chains.put(table, new ArrayList<String>());
+                chains.get(table).add(line);
+            }
+        }
+
+        StringBuilder payload = new StringBuilder();
+        for (String name : TABLES) {
+            List<String> rules = chains.get(name);
+            if (rules == null) continue;
+            List<String> reordered = reorder(rules);
+            if (reordered.equals(rules)) continue;
+
+            // declaring a user chain with --noflush flushes it: the table commit swaps it at once
+            payload.append('*').append(name).append('\n');
+            payload.append(':').append(CHAIN).append(" - [0:0]\n");
+            for (String rule : reordered) {
+                payload.append(rule).append('\n');
+            }
+            payload.append("COMMIT\n");
+        }
+        return (payload.length() > 0 ? payload.toString() : null);
+    }
+
+    /**
+     * Read counters, and apply a better order if any.
+     *
+     * @param iptables Iptables instance
+     */
+    public static void run(Iptables iptables) {
+        String saved = iptables.save();
+        if (saved == null) {
+            Log.e(TAG, "Unable to read counters");
+            return;
+        }
+        String payload = optimize(saved);
+        if (payload == null) {
+            Log.d(TAG, "Rules are already in order");
+            return;
+        }
+        if (!iptables.restore(payload)) {
+            Log.e(TAG, "Unable to apply new order");
+            Log.e(TAG, payload);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package org.ethack.orwall.lib;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.ethack.orwall.BackgroundProcess;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Time-bounded rules: a single queue of (deadline, rule change), persisted in preferences,
+ * and one alarm for the earliest deadline. Everything due is applied at once.
+ * <p/>
+ * Deadlines are on the elapsed realtime clock, so that setting the wall clock back doesn't
+ * extend a grant. That clock restarts at boot: the queue is saved along with an anchor
+ * (wall clock, elapsed realtime), and rebased on it after a reboot.
+ */
+public class RuleScheduler {
+    private final static String TAG = "RuleScheduler";
+
+    public final static String TYPE_BROWSER = "browser";
+    public final static String TYPE_SIP = "sip";
+    public final static String TYPE_APP = "app";
+
+    /**
+     * A rule change, due at some elapsed realtime
+     */
+    public static class Entry implements Comparable<Entry> {
+        public final long deadline;
+        public final String type;
+        public final boolean allow;
+        public final AppRule rule;
+
+        public Entry(long deadline, String type, boolean allow, AppRule rule) {
+            this.deadline = deadline;
+            this.type = type;
+            this.allow = allow;
+            this.rule = rule;
+        }
+
+        public Entry(long deadline, String type, boolean allow, long uid) {
+            this(deadline, type, allow, new AppRule(false, "", uid, Constants.DB_ONION_TYPE_NONE, false, false));
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return (deadline < other.deadline ? -1 : (deadline > other.deadline ? 1 : 0));
+        }
+
+        private String serialize() {
+            return String.format(Locale.US, "%d;%s;%b;%d;%s;%b;%b;%s",
+                    deadline, type, allow, rule.getAppUID(), rule.getOnionType(),
+                    rule.getLocalHost(), rule.getLocalNetwork(), rule.getPkgName());
+        }
+
+        private static Entry parse(String value) {
+            String[] fields = value.split(";", 8);
+            if (fields.length != 8) return null;
+            try {
+                return new Entry(
+                        Long.valueOf(fields[0]), fields[1], Boolean.valueOf(fields[2]),
+                        new AppRule(false, fields[7], Long.valueOf(fields[3]), fields[4],
+                                Boolean.valueOf(fields[5]), Boolean.valueOf(fields[6]))
+                );
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Deadline some time from now
+     * @param delay milliseconds
+     * @return deadline, for Entry
+     */
+    public static long deadlineIn(long delay) {
+        return SystemClock.elapsedRealtime() + delay;
+    }
+
+    private static PriorityQueue<Entry> load(Context context) {
+        long now = SystemClock.elapsedRealtime();
+        // deadlines are from the clock the queue was saved with
+        long shift = 0;
+        String[] anchor = Preferences.getScheduledRulesAnchor(context).split(";");
+        if (anchor.length == 2) {
+            try {
+                long wall = Long.valueOf(anchor[0]);
+                long elapsed = Long.valueOf(anchor[1]);
+                // saved during a previous boot. Time gone by since then is at least this boot's
+                // uptime, whatever the wall clock says. A later reboot isn't seen, but deadlines
+                // of the old clock only come earlier on this one.
+                if (elapsed > now) {
+                    shift = now - elapsed - Math.max(now, System.currentTimeMillis() - wall);
+                }
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Bad anchor: " + e.getLocalizedMessage());
+            }
+        } else {
+            // queued with wall clock deadlines, by an older version
+            shift = now - System.currentTimeMillis();
+        }
+
+        PriorityQueue<Entry> queue = new PriorityQueue<>();
+        for (String value : Preferences.getScheduledRules(context)) {
+            Entry entry = Entry.parse(value);
+            if (entry == null) continue;
+            if (shift != 0) {
+                entry = new Entry(entry.deadline + shift, entry.type, entry.allow, entry.rule);
+            }
+            queue.add(entry);
+        }
+        return queue;
+    }
+
+    private static void save(Context context, PriorityQueue<Entry> queue) {
+        Set<String> values = new HashSet<>();
+        for (Entry entry : queue) {
+            values.add(entry.serialize());
+        }
+        Preferences.setScheduledRules(context, values);
+        Preferences.setScheduledRulesAnchor(context, String.format(Locale.US, "%d;%d",
+                System.currentTimeMillis(), SystemClock.elapsedRealtime()));
+    }
+
+    private static PendingIntent getRunIntent(Context context) {
+        Intent intent = new Intent(context, BackgroundProcess.class);
+        // PendingIntents only differ by action, not by extras
+        intent.setAction(Constants.ACTION_RUN_SCHEDULE);
+        intent.putExtra(Constants.ACTION, Constants.ACTION_RUN_SCHEDULE);
+        return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Set the only alarm on the earliest deadline, or remove it if nothing is queued.
+     */
+    private static void arm(Context context, PriorityQueue<Entry> queue) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent intent = getRunIntent(context);
+        if (queue.isEmpty()) {
+            alarmManager.cancel(intent);
+        } else if (Build.VERSION.SDK_INT >= 19) {
+            alarmManager.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, queue.peek().deadline, intent);
+        } else {
+            alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, queue.peek().deadline, intent);
+        }
+    }
+
+    /**
+     * Set the alarm again, as it doesn't survive reboots.
+     * Deadlines are rebased on this boot's clock at the same time.
+     * @param context application context
+     */
+    public static synchronized void arm(Context context) {
+        PriorityQueue<Entry> queue = load(context);
+        save(context, queue);
+        arm(context, queue);
+    }
+
+    /**
+     * Queue a rule change.
+     * @param context application context
+     * @param entry   rule change
+     */
+    public static synchronized void schedule(Context context, Entry entry) {
+        PriorityQueue<Entry> queue = load(context);
+        queue.add(entry);
+        save(context, queue);
+        arm(context, queue);
+    }
+
+    /**
+     * Drop queued changes of some kind.
+     * @param context application context
+     * @param type    TYPE_* constant
+     * @param uid     application UID, null for all of them
+     */
+    public static synchronized void cancel(Context context, String type, Long uid) {
+        PriorityQueue<Entry> queue = load(context);
+        Iterator<Entry> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.type.equals(type) && (uid == null || uid.equals(entry.rule.getAppUID()))) {
+                iterator.remove();
+            }
+        }
+        save(context, queue);
+        arm(context, queue);
+    }
+
+    /**
+     * Apply every due change, and set the alarm for the next one.
+     * @param context  application context
+     * @param iptables Iptables instance
+     */
+    public static synchronized void run(Context context, Iptables iptables) {
+        PriorityQueue<Entry> queue = load(context);
+        long now = SystemClock.elapsedRealtime();
+        List<Entry> due = new ArrayList<>();
+        while (!queue.isEmpty() && queue.peek().deadline <= now) {
+            due.add(queue.poll());
+        }
+        save(context, queue);
+
+        boolean live = Preferences.isOrwallEnabled(context) || Preferences.isOrwallPaused(context);
+        boolean appChanged = false;
+        NatRules natRules = new NatRules(context);
+        for (Entry entry : due) {
+            Log.d(TAG, "Applying " + entry.serialize());
+            AppRule rule = entry.rule;
+            if (entry.type.equals(TYPE_BROWSER)) {
+                if (live) {
+                    iptables.manageCaptiveBrowser(entry.allow, rule.getAppUID());
+                    // the browser's flows would outlive the grant through the fast path
+                    if (!entry.allow) iptables.flushConntrack();
+                }
+                Preferences.setBrowserEnabled(context, entry.allow);
+            } else if (entry.type.equals(TYPE_SIP)) {
+                if (live) iptables.manageSip(entry.allow, rule.getAppUID());
+                Preferences.setSIPEnabled(context, entry.allow);
+            } else if (entry.type.equals(TYPE_APP)) {
+                AppRule current = natRules.getAppRule(rule.getAppUID());
+                if (entry.allow && !current.isStored()) {
+                    natRules.addAppToRules(rule);
+                } else if (!entry.allow && current.isStored()) {
+                    // rules must be deleted the way they were added
+                    natRules.removeAppFromRules(rule.getAppUID());
+                    rule = current;
+                } else {
+                    continue;
+                }
+                appChanged = true;
+                if (live) {
+                    iptables.appRule(entry.allow, rule.getAppUID(), rule.getPkgName(), rule.getOnionType(),
+                            rule.getLocalHost(), rule.getLocalNetwork());
+                }
+            }
+        }
+
+        arm(context, queue);
+        if (appChanged) {
+            Iptables.updateInitScript(context, iptables);
+        }
+        if (!due.isEmpty()) {
+            // switches showing a grant must follow
+            Intent intent = new Intent(Constants.ACTION_SCHEDULE_APPLIED);
+            intent.setPackage(context.getPackageName());
+            context.sendBroadcast(intent);
+        }
+    }
+}
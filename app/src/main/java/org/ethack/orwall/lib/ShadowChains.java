@@ -0,0 +1,125 @@
+package org.ethack.orwall.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Turns a recorded ruleset into shadow chains (ow_OUTPUT_next and friends), loadable
+ * at once with iptables-restore --noflush, next to the live chains.
+ * Operations on built-in chains are not part of the payload: they are the jumps to swap.
+ */
+public class ShadowChains {
+    public final static String SUFFIX = "_next";
+
+    private final static Set<String> BUILTIN = new HashSet<>(Arrays.asList(
+            "INPUT", "OUTPUT", "FORWARD", "PREROUTING", "POSTROUTING"
+    ));
+    private final static Pattern COMMAND = Pattern.compile("^(-t (\\S+) )?-([A-Z]) (\\S+)(.*)$");
+
+    private final Map<String, List<String>> chains = new LinkedHashMap<>();
+    private final Map<String, List<String>> rules = new LinkedHashMap<>();
+    private final Map<String, List<String>> jumps = new LinkedHashMap<>();
+    private final List<String> builtins = new ArrayList<>();
+
+    /**
+     * @param recorded rules, as passed to iptables, in order
+     */
+    public ShadowChains(List<String> recorded) {
+        for (String rule : recorded) {
+            Matcher matcher = COMMAND.matcher(rule);
+            if (!matcher.matches()) continue;
+            String table = (matcher.group(2) == null ? "filter" : matcher.group(2));
+            String command = matcher.group(3);
+            String chain = matcher.group(4);
+            String spec = matcher.group(5);
+
+            if (BUILTIN.contains(chain)) {
+                // jumps are swapped, policies and lock removal are only needed on first apply
+                if (command.equals("A") && spec.startsWith(" -j ow_")) {
+                    get(jumps, table).add(chain + " " + spec.substring(" -j ".length()).trim());
+                } else {
+                    builtins.add(rule);
+                }
+            } else if (command.equals("N")) {
+                get(chains, table).add(chain);
+            } else if (!command.equals("F")) {
+                // chains are brand new, no need to flush them
+                get(rules, table).add(String.format("-%s %s%s", command, chain, spec));
+            }
+        }
+    }
+
+    private static List<String> get(Map<String, List<String>> map, String table) {
+        if (!map.containsKey(table)) map.put(table, new ArrayList<String>());
+        return map.get(table);
+    }
+
+    /**
+     * @param table iptables table
+     * @return user chains of this table
+     */
+    public List<String> getChains(String table) {
+        return (chains.containsKey(table) ? chains.get(table) : new ArrayList<String>());
+    }
+
+    /**
+     * @param table iptables table
+     * @return jumps from built-in chains, as "BUILTIN chain"
+     */
+    public List<String> getJumps(String table) {
+        return (jumps.containsKey(table) ? jumps.get(table) : new ArrayList<String>());
+    }
+
+    /**
+     * @return operations on built-in chains other than jumps, like policies
+     */
+    public List<String> getBuiltinRules() {
+        return builtins;
+    }
+
+    /**
+     * @return tables touched by this ruleset
+     */
+    public Set<String> getTables() {
+        Set<String> tables = new HashSet<>(chains.keySet());
+        tables.addAll(rules.keySet());
+        return tables;
+    }
+
+    private String shadow(String table, String rule) {
+        StringBuilder result = new StringBuilder();
+        for (String token : rule.split(" ", -1)) {
+            if (result.length() > 0) result.append(' ');
+            result.append(getChains(table).contains(token) ? token + SUFFIX : token);
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return iptables-restore --noflush payload creating and filling shadow chains
+     */
+    public String toRestore() {
+        StringBuilder payload = new StringBuilder();
+        for (String table : getTables()) {
+            payload.append('*').append(table).append('\n');
+            // declaring a chain with --noflush flushes it if a previous attempt left it
+            for (String chain : getChains(table)) {
+                payload.append(':').append(chain).append(SUFFIX).append(" - [0:0]\n");
+            }
+            if (rules.containsKey(table)) {
+                for (String rule : rules.get(table)) {
+                    payload.append(shadow(table, rule)).append('\n');
+                }
+            }
+            payload.append("COMMIT\n");
+        }
+        return payload.toString();
+    }
+}
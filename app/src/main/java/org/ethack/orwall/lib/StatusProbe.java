@@ -0,0 +1,149 @@
+package org.ethack.orwall.lib;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.sufficientlysecure.rootcommands.RootCommands;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Device and firewall status, probed once in the background and cached for a while.
+ * Results are published on the main thread, so that views never wait on a root process.
+ */
+public class StatusProbe {
+    private final static long TTL = 30 * 1000;
+
+    /**
+     * Probe results
+     */
+    public static class Status {
+        public final boolean root;
+        public final boolean iptables;
+        public final boolean initSupported;
+        public final boolean initialized;
+        public final boolean comments;
+        public final boolean orbot;
+        public final boolean booted;
+        private final long timestamp;
+
+        private Status(Context context) {
+            this.root = RootCommands.rootAccessGiven();
+            this.iptables = Iptables.iptablesExists();
+            this.initSupported = Iptables.initSupported();
+            this.orbot = Util.isOrbotInstalled(context);
+            if (root && iptables) {
+                Iptables ipt = new Iptables(context);
+                try {
+                    this.initialized = ipt.isInitialized();
+                    this.comments = ipt.getSupportComment();
+                    this.booted = ipt.haveBooted();
+                } finally {
+                    ipt.close();
+                }
+            } else {
+                this.initialized = false;
+                this.comments = false;
+                this.booted = false;
+            }
+            this.timestamp = SystemClock.elapsedRealtime();
+        }
+
+        private boolean isFresh() {
+            return SystemClock.elapsedRealtime() - timestamp < TTL;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the main thread
+         * @param status probe results
+         */
+        void onStatus(Status status);
+    }
+
+    private static Status cached = null;
+    private static boolean probing = false;
+    private static final List<Listener> listeners = new ArrayList<>();
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Get status: right away if cached results are fresh, once probed otherwise.
+     * @param context  any context
+     * @param listener called once, on the main thread, even if it's already waiting
+     */
+    public static synchronized void request(Context context, final Listener listener) {
+        if (listeners.contains(listener)) return;
+        if (cached != null && cached.isFresh()) {
+            final Status status = cached;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (hasListener(listener)) {
+                        removeListener(listener);
+                        listener.onStatus(status);
+                    }
+                }
+            });
+        }
+        listeners.add(listener);
+        if (cached == null || !cached.isFresh()) {
+            probe(context.getApplicationContext());
+        }
+    }
+
+    private static synchronized boolean hasListener(Listener listener) {
+        return listeners.contains(listener);
+    }
+
+    /**
+     * Drop a pending request, e.g. when its view goes away
+     * @param listener listener passed to request()
+     */
+    public static synchronized void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return last probe results, even stale ones, null if never probed
+     */
+    public static synchronized Status getCached() {
+        return cached;
+    }
+
+    /**
+     * Forget cached results, after something changed them
+     */
+    public static synchronized void invalidate() {
+        cached = null;
+    }
+
+    private static void probe(final Context context) {
+        if (probing) return;
+        probing = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final Status status = new Status(context);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Listener> waiting;
+                        synchronized (StatusProbe.class) {
+                            cached = status;
+                            probing = false;
+                            waiting = new ArrayList<>(listeners);
+                            listeners.clear();
+                        }
+                        for (Listener listener : waiting) {
+                            listener.onStatus(status);
+                        }
+                    }
+                });
+            }
+        }, "StatusProbe").start();
+    }
+}
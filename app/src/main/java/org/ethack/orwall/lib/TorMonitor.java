@@ -0,0 +1,155 @@
+package org.ethack.orwall.lib;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.ethack.orwall.BackgroundProcess;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Watches Orbot: TransPort and DNSPort.
+ * While Tor is down, Tor-routed traffic is rejected right away instead of hanging
+ * on a dead proxy. See Iptables.torDown().
+ * <p/>
+ * Checks are requested right away on Orbot status broadcasts (see TorStatusReceiver) and
+ * when Orbot leaves DNS queries unanswered (see DnsForwarder). A slow periodic check
+ * catches anything else.
+ */
+public class TorMonitor {
+    private final static String TAG = "TorMonitor";
+    private final static String LOCALHOST = "127.0.0.1";
+
+    private final static long INTERVAL = 5 * 60 * 1000;
+    // event-driven checks: at most one in this delay
+    private final static long MIN_REQUEST_DELAY = 10 * 1000;
+    private final static int PROBE_TIMEOUT = 2000;
+
+    private static long lastRequest = 0;
+
+    // DNS query without any question: Tor answers it locally, no circuit involved
+    private final static byte[] DNS_PROBE = {
+            0x6f, 0x77, 0x01, 0x00, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private static PendingIntent getCheckIntent(Context context) {
+        Intent intent = new Intent(context, BackgroundProcess.class);
+        // PendingIntents only differ by action, not by extras
+        intent.setAction(Constants.ACTION_CHECK_TOR);
+        intent.putExtra(Constants.ACTION, Constants.ACTION_CHECK_TOR);
+        return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Check Tor as soon as possible, because something hints that its state changed.
+     * Requests closer than MIN_REQUEST_DELAY are merged.
+     *
+     * @param context any context
+     */
+    public static void request(Context context) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (TorMonitor.class) {
+            if (lastRequest != 0 && now - lastRequest < MIN_REQUEST_DELAY) return;
+            lastRequest = now;
+        }
+        Intent intent = new Intent(context, BackgroundProcess.class);
+        intent.putExtra(Constants.ACTION, Constants.ACTION_CHECK_TOR);
+        context.startService(intent);
+    }
+
+    /**
+     * Start periodic checks, as a fallback for missed events. They don't wake the device up.
+     *
+     * @param context application context
+     */
+    public static void schedule(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(
+                AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + INTERVAL,
+                INTERVAL,
+                getCheckIntent(context)
+        );
+    }
+
+    public static void cancel(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(getCheckIntent(context));
+    }
+
+    private static boolean probeTransPort(long port) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(LOCALHOST, (int) port), PROBE_TIMEOUT);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static boolean probeDNSPort(long port) {
+        DatagramSocket socket = null;
+        try {
+            socket = new DatagramSocket();
+            socket.setSoTimeout(PROBE_TIMEOUT);
+            socket.connect(new InetSocketAddress(LOCALHOST, (int) port));
+            socket.send(new DatagramPacket(DNS_PROBE, DNS_PROBE.length));
+            byte[] buffer = new byte[512];
+            socket.receive(new DatagramPacket(buffer, buffer.length));
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (socket != null) socket.close();
+        }
+    }
+
+    /**
+     * Check whether Tor can actually take traffic. Ports answering is what matters,
+     * so no root process is needed.
+     *
+     * @param context application context
+     * @return true if both Orbot ports answer
+     */
+    public static boolean isTorAlive(Context context) {
+        if (!probeTransPort(Long.valueOf(Preferences.getTransPort(context)))) {
+            Log.d(TAG, "TransPort doesn't answer");
+            return false;
+        }
+        if (!probeDNSPort(Long.valueOf(Preferences.getDNSPort(context)))) {
+            Log.d(TAG, "DNSPort doesn't answer");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Probe Tor, and swap the fast-fail rule in or out if its state changed.
+     *
+     * @param context  application context
+     * @param iptables Iptables instance
+     */
+    public static void check(Context context, Iptables iptables) {
+        if (!iptables.isOrbotInstalled()) return;
+
+        boolean down = !isTorAlive(context);
+        if (down != Preferences.isTorDown(context)) {
+            Log.d(TAG, (down ? "Tor went down" : "Tor is back"));
+            iptables.torDown(down);
+            Preferences.setTorDown(context, down);
+        }
+    }
+}
@@ -45,6 +45,10 @@ public class Util {
         // TODO: we may want to get some setting writer directly through the API.
         // This seems to be done with a System app only. orWall may become a system app.
         if (Build.VERSION.SDK_INT > 18) {
+            if (!InstallScripts.await(context, 10)) {
+                Log.e("Portal", "Scripts are not extracted");
+                return;
+            }
 
             String CMD;
             if (status) {
@@ -129,7 +129,7 @@ public class Shell implements Closeable {
 
     private Shell(String shell, ArrayList<String> customEnv, String baseDirectory)
             throws IOException, RootAccessDeniedException {
-        Log.d(RootCommands.TAG, "Starting shell: " + shell);
+        Log.d(RootCommands.TAG, "Starting shell: %s", shell);
 
         // start shell process!
         shellProcess = Utils.runWithEnv(shell, customEnv, baseDirectory);
@@ -131,7 +131,7 @@ public class Toolbox {
                         String pid = psMatcher.group(1);
                         // add to pids list
                         pids.add(pid);
-                        Log.d(RootCommands.TAG, "Found pid: " + pid);
+                        Log.d(RootCommands.TAG, "Found pid: %s", pid);
                     } else {
                         Log.d(RootCommands.TAG, "Matching in ps command failed!");
                     }
@@ -344,7 +344,7 @@ public class Toolbox {
                     if (permissionMatcher.find()) {
                         permissions = convertPermissions(permissionMatcher.group(1));
 
-                        Log.d(RootCommands.TAG, "Found permissions: " + permissions);
+                        Log.d(RootCommands.TAG, "Found permissions: %s", permissions);
                     } else {
                         Log.d(RootCommands.TAG, "Permissions were not found in ls command!");
                     }
@@ -357,7 +357,7 @@ public class Toolbox {
                          * absolute!!!
                          */
                         symlink = symlinkMatcher.group(1);
-                        Log.d(RootCommands.TAG, "Symlink found: " + symlink);
+                        Log.d(RootCommands.TAG, "Symlink found: %s", symlink);
                     } else {
                         Log.d(RootCommands.TAG, "No symlink found!");
                     }
@@ -24,6 +24,7 @@ import java.util.concurrent.TimeoutException;
 import org.sufficientlysecure.rootcommands.RootCommands;
 import org.sufficientlysecure.rootcommands.Shell;
 import org.sufficientlysecure.rootcommands.util.BrokenBusyboxException;
+import org.sufficientlysecure.rootcommands.util.CommandTrace;
 import org.sufficientlysecure.rootcommands.util.Log;
 
 public abstract class Command {
@@ -34,6 +35,8 @@ public abstract class Command {
     int id;
     int timeout = RootCommands.DEFAULT_TIMEOUT;
     Shell shell = null;
+    long written = 0;
+    String lastOutput = null;
 
     public Command(String... command) {
         this.command = command;
@@ -64,19 +67,27 @@ public abstract class Command {
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < command.length; i++) {
             // redirect stderr to stdout
-            sb.append(command[i] + " 2>&1");
+            sb.append(command[i]).append(" 2>&1");
             sb.append('\n');
         }
-        Log.d(RootCommands.TAG, "Sending command(s): " + sb.toString());
-        return sb.toString();
+        String result = sb.toString();
+        if (Log.isDebug()) {
+            Log.d(RootCommands.TAG, "Sending command(s): %s", result);
+        }
+        return result;
     }
 
     public void writeCommand(OutputStream out) throws IOException {
+        written = System.nanoTime();
         out.write(getCommand().getBytes());
     }
 
     public void processOutput(String line) {
-        Log.d(RootCommands.TAG, "ID: " + id + ", Output: " + line);
+        // once per output line: no varargs array nor boxing unless debugging
+        if (Log.isDebug()) {
+            Log.d(RootCommands.TAG, "ID: %d, Output: %s", id, line);
+        }
+        lastOutput = line;
 
         /*
          * Try to detect broken toolbox/busybox binaries (see
@@ -97,7 +108,9 @@ public abstract class Command {
     public abstract void output(int id, String line);
 
     public void processAfterExecution(int exitCode) {
-        Log.d(RootCommands.TAG, "ID: " + id + ", ExitCode: " + exitCode);
+        if (Log.isDebug()) {
+            Log.d(RootCommands.TAG, "ID: %d, ExitCode: %d", id, exitCode);
+        }
 
         afterExecution(id, exitCode);
     }
@@ -105,13 +118,16 @@ public abstract class Command {
     public abstract void afterExecution(int id, int exitCode);
 
     public void commandFinished(int id) {
-        Log.d(RootCommands.TAG, "Command " + id + " finished.");
+        if (Log.isDebug()) {
+            Log.d(RootCommands.TAG, "Command %d finished.", id);
+        }
     }
 
     public void setExitCode(int code) {
         synchronized (this) {
             exitCode = code;
             finished = true;
+            CommandTrace.record(command, code, (written > 0 ? System.nanoTime() - written : 0), lastOutput);
             commandFinished(id);
             this.notifyAll();
         }
@@ -133,7 +149,7 @@ public abstract class Command {
 
     public void terminated(String reason) {
         setExitCode(-1);
-        Log.d(RootCommands.TAG, "Command " + id + " did not finish, because of " + reason);
+        Log.d(RootCommands.TAG, "Command %d did not finish, because of %s", id, reason);
     }
 
     /**
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.rootcommands.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Ring buffer of the last commands run in any shell, whatever the debug setting.
+ *
+ * Recording only keeps references; traces are formatted when dumped.
+ */
+public final class CommandTrace {
+    public static final int CAPACITY = 128;
+
+    private static final String[][] commands = new String[CAPACITY][];
+    private static final int[] exitCodes = new int[CAPACITY];
+    private static final long[] finished = new long[CAPACITY];
+    private static final long[] durations = new long[CAPACITY];
+    private static final String[] lastOutputs = new String[CAPACITY];
+    private static int next = 0;
+    private static int size = 0;
+
+    private CommandTrace() {
+    }
+
+    /**
+     * @param command     command lines, as sent to the shell
+     * @param exitCode    exit code, -1 if the command did not finish
+     * @param duration    time between write and exit code, in nanoseconds
+     * @param lastOutput  last output line, may be null
+     */
+    public static synchronized void record(String[] command, int exitCode, long duration, String lastOutput) {
+        commands[next] = command;
+        exitCodes[next] = exitCode;
+        finished[next] = System.currentTimeMillis();
+        durations[next] = duration;
+        lastOutputs[next] = lastOutput;
+        next = (next + 1) % CAPACITY;
+        if (size < CAPACITY) size++;
+    }
+
+    /**
+     * @return durations of recorded commands, in nanoseconds, oldest first
+     */
+    public static synchronized long[] getDurations() {
+        long[] result = new long[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = durations[(next - size + i + CAPACITY) % CAPACITY];
+        }
+        return result;
+    }
+
+    /**
+     * @return one line per recorded command, oldest first
+     */
+    public static synchronized List<String> dump() {
+        List<String> lines = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int index = (next - size + i + CAPACITY) % CAPACITY;
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.US, "%tT.%<tL exit=%d %.1fms ",
+                    finished[index], exitCodes[index], durations[index] / 1e6));
+            for (int j = 0; j < commands[index].length; j++) {
+                if (j > 0) sb.append(" ; ");
+                sb.append(commands[index][j]);
+            }
+            if (lastOutputs[index] != null) {
+                sb.append(" => ").append(lastOutputs[index]);
+            }
+            lines.add(sb.toString());
+        }
+        return lines;
+    }
+
+    public static synchronized void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            commands[i] = null;
+            lastOutputs[i] = null;
+        }
+        next = 0;
+        size = 0;
+    }
+}
@@ -16,14 +16,21 @@
 
 package org.sufficientlysecure.rootcommands.util;
 
+import java.util.Locale;
+
 import org.sufficientlysecure.rootcommands.RootCommands;
 
 /**
  * Wraps Android Logging to enable or disable debug output using Constants
  * 
+ * Format variants only build their message when debug output is on.
  */
 public final class Log {
 
+    public static boolean isDebug() {
+        return RootCommands.DEBUG;
+    }
+
     public static void v(String tag, String msg) {
         if (RootCommands.DEBUG) {
             android.util.Log.v(tag, msg);
@@ -36,6 +43,12 @@ public final class Log {
         }
     }
 
+    public static void v(String tag, String format, Object... args) {
+        if (RootCommands.DEBUG) {
+            android.util.Log.v(tag, String.format(Locale.US, format, args));
+        }
+    }
+
     public static void d(String tag, String msg) {
         if (RootCommands.DEBUG) {
             android.util.Log.d(tag, msg);
@@ -48,6 +61,12 @@ public final class Log {
         }
     }
 
+    public static void d(String tag, String format, Object... args) {
+        if (RootCommands.DEBUG) {
+            android.util.Log.d(tag, String.format(Locale.US, format, args));
+        }
+    }
+
     public static void i(String tag, String msg) {
         if (RootCommands.DEBUG) {
             android.util.Log.i(tag, msg);
@@ -60,6 +79,12 @@ public final class Log {
         }
     }
 
+    public static void i(String tag, String format, Object... args) {
+        if (RootCommands.DEBUG) {
+            android.util.Log.i(tag, String.format(Locale.US, format, args));
+        }
+    }
+
     public static void w(String tag, String msg) {
         android.util.Log.w(tag, msg);
     }
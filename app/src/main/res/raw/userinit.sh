@@ -1,5 +1,9 @@
 #!/system/bin/sh
 
+# Generated by orWall from its current ruleset — do not edit, it will be overwritten.
+# IPv4 rules sha256: @IPV4_SHA256@
+# IPv6 rules sha256: @IPV6_SHA256@
+
 # check if orwall is installed
 if [ ! -d '/data/data/org.ethack.orwall' ]; then
   log -p i -t orwall "orWall doesn't seem to be installed."
@@ -8,26 +12,28 @@ fi
 
 IP6TABLES=/system/bin/ip6tables
 IPTABLES=/system/bin/iptables
+IP6TABLES_RESTORE=/system/bin/ip6tables-restore
+IPTABLES_RESTORE=/system/bin/iptables-restore
 
-# check if iptables can lock
-if ${IPTABLES} --help | grep -q -e "--wait"; then
-    IP6TABLES=/system/bin/ip6tables\ -w
-    IPTABLES=/system/bin/iptables\ -w
-fi
+MARKS=@MARKS_FILE@
 
 log() {
   command log -p d -t orwall "$@"
 }
 
-run() {
-  log "$@"
-  command $@ 2>&1 | while read line ; do
+# boot timeline: seconds since kernel start, read by orWall
+mark() {
+  read up rest < /proc/uptime
+  echo "$1 $up" >> ${MARKS}
+}
+
+# restore a payload from stdin, logging its output
+restore() {
+  command "$@" 2>&1 | while read line ; do
     log "  $line"
   done
 }
 
-ORBOT_UID=$(cat /data/system/packages.list | sed -n 's/^org.torproject.android //p' | cut -d ' ' -f1)
-
 # paranoia / this script should run one time only
 command ${IPTABLES} -C ow_OUTPUT_LOCK -j DROP
 if [ $? -eq 0 ]; then
@@ -36,34 +42,39 @@ if [ $? -eq 0 ]; then
 else
     log "Starting orwall init as $(id)"
 fi
+rm -f ${MARKS}
+mark script_start
 
-# FIXME: Running iptables first time seems to initalize it.
-sleep 1
-run "$IPTABLES --list"
+## Block all traffic at boot, in case full rules can't be applied ##
+log "Locking IPv4"
+restore ${IPTABLES_RESTORE} --noflush <<'ORWALL_LOCK'
+@IPV4_LOCK@ORWALL_LOCK
+mark lock_installed
 
-# OUTPUT
-run "$IPTABLES -P OUTPUT DROP"
-run "$IPTABLES -N ow_OUTPUT_LOCK"
-run "$IPTABLES -A ow_OUTPUT_LOCK -m owner --uid-owner $ORBOT_UID -m conntrack --ctstate NEW,RELATED,ESTABLISHED -j ACCEPT"
-run "$IPTABLES -A ow_OUTPUT_LOCK -j DROP"
-run "$IPTABLES -I OUTPUT -j ow_OUTPUT_LOCK"
-
-# INPUT
-run "$IPTABLES -P INPUT DROP"
-run "$IPTABLES -N ow_INPUT_LOCK"
-run "$IPTABLES -A ow_INPUT_LOCK -m owner --uid-owner $ORBOT_UID -m conntrack --ctstate NEW,RELATED,ESTABLISHED -j ACCEPT"
-run "$IPTABLES -A ow_INPUT_LOCK -j DROP"
-run "$IPTABLES -I INPUT -j ow_INPUT_LOCK"
+## Full policy: IPv6 is blocked, IPv4 goes through orWall chains ##
+if [ -x ${IP6TABLES_RESTORE} ]; then
+  log "Applying IPv6 rules"
+  restore ${IP6TABLES_RESTORE} --noflush <<'ORWALL_IPV6'
+@IPV6_RULES@ORWALL_IPV6
+else
+  log "Applying IPv6 rules one by one"
+  ${IP6TABLES} -P INPUT DROP
+  ${IP6TABLES} -P OUTPUT DROP
+  ${IP6TABLES} -P FORWARD DROP
+  ${IP6TABLES} -I INPUT -j REJECT
+  ${IP6TABLES} -I OUTPUT -j REJECT
+  ${IP6TABLES} -I FORWARD -j REJECT
+fi
 
-## Block all traffic at boot ##
-run "$IP6TABLES -P INPUT DROP"
-run "$IP6TABLES -P OUTPUT DROP"
-run "$IP6TABLES -P FORWARD DROP"
-run "$IP6TABLES -I INPUT -j REJECT"
-run "$IP6TABLES -I OUTPUT -j REJECT"
-run "$IP6TABLES -I FORWARD -j REJECT"
+log "Applying IPv4 rules"
+restore ${IPTABLES_RESTORE} --noflush <<'ORWALL_IPV4'
+@IPV4_RULES@ORWALL_IPV4
 
-# output iptables status: filter
-#run "$IPTABLES -nL -t filter"
-# output iptables status: nat
-#run "$IPTABLES -nL -t nat"
+# witness chain: lets orWall know this exact ruleset is in place
+if command ${IPTABLES} -C OUTPUT -j ow_OUTPUT; then
+  command ${IPTABLES} -N @MARKER@
+  mark script_done
+  log "orWall rules applied"
+else
+  log "orWall rules failed, boot lock is kept"
+fi
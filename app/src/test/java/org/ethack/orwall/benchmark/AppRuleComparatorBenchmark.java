@@ -0,0 +1,92 @@
+package org.ethack.orwall.benchmark;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+import org.ethack.orwall.lib.AppRule;
+import org.ethack.orwall.lib.AppRuleComparator;
+import org.ethack.orwall.lib.Constants;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * App list sorting, labels being resolved through PackageManager on first comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class AppRuleComparatorBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int apps;
+
+    private PackageManager packageManager;
+    private List<AppRule> rules;
+
+    @Setup(Level.Trial)
+    public void setUpPackageManager() throws Exception {
+        packageManager = mock(PackageManager.class);
+        when(packageManager.getPackageInfo(anyString(), anyInt())).thenAnswer(new Answer<PackageInfo>() {
+            @Override
+            public PackageInfo answer(InvocationOnMock invocation) {
+                PackageInfo info = new PackageInfo();
+                info.applicationInfo = new ApplicationInfo();
+                info.applicationInfo.packageName = (String) invocation.getArguments()[0];
+                return info;
+            }
+        });
+        when(packageManager.getApplicationLabel(any(ApplicationInfo.class))).thenAnswer(new Answer<CharSequence>() {
+            @Override
+            public CharSequence answer(InvocationOnMock invocation) {
+                return "Label " + ((ApplicationInfo) invocation.getArguments()[0]).packageName;
+            }
+        });
+    }
+
+    /**
+     * Fresh rules each time: labels aren't resolved yet, like on app list creation
+     */
+    @Setup(Level.Invocation)
+    public void setUpRules() {
+        Random random = new Random(Ruleset.SEED);
+        rules = new ArrayList<>();
+        for (int i = 0; i < apps; i++) {
+            rules.add(new AppRule(true, "org.example.app" + random.nextInt(apps * 10),
+                    (long) (Ruleset.FIRST_UID + i), Constants.DB_ONION_TYPE_TOR, false, false));
+        }
+    }
+
+    @Benchmark
+    public List<AppRule> sort() {
+        Collections.sort(rules, new AppRuleComparator(packageManager));
+        return rules;
+    }
+}
@@ -0,0 +1,54 @@
+package org.ethack.orwall.benchmark;
+
+import org.ethack.orwall.lib.NetworkHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subnet math: network of an address for a prefix, as used for LAN and route subnets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class NetworkHelperBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int subnets;
+
+    private int[] addresses;
+    private int[] prefixes;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(Ruleset.SEED);
+        addresses = new int[subnets];
+        prefixes = new int[subnets];
+        for (int i = 0; i < subnets; i++) {
+            addresses[i] = random.nextInt();
+            prefixes[i] = 8 + random.nextInt(25);
+        }
+    }
+
+    @Benchmark
+    public void toNetwork(Blackhole blackhole) {
+        for (int i = 0; i < subnets; i++) {
+            blackhole.consume(NetworkHelper.toNetwork(addresses[i], prefixes[i]));
+        }
+    }
+}
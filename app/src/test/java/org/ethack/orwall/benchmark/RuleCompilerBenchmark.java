@@ -0,0 +1,69 @@
+package org.ethack.orwall.benchmark;
+
+import org.ethack.orwall.lib.AppRule;
+import org.ethack.orwall.lib.BootScript;
+import org.ethack.orwall.lib.Iptables;
+import org.ethack.orwall.lib.MockedIptables;
+import org.ethack.orwall.lib.RuleOptimizer;
+import org.ethack.orwall.lib.ShadowChains;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rule generation through Iptables.compile(), on a mocked Context, then processing of its
+ * output: optimization passes, shadow chains payload and init-script payload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class RuleCompilerBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int apps;
+
+    private Iptables iptables;
+    private List<AppRule> rules;
+    private List<String> compiled;
+
+    @Setup
+    public void setUp() {
+        iptables = MockedIptables.create();
+        rules = MockedIptables.apps(apps, Ruleset.SEED);
+        compiled = iptables.compile(rules);
+    }
+
+    @Benchmark
+    public List<String> compile() {
+        return iptables.compile(rules);
+    }
+
+    @Benchmark
+    public List<String> optimize() {
+        return RuleOptimizer.optimize(compiled);
+    }
+
+    @Benchmark
+    public String shadowChains() {
+        return new ShadowChains(compiled).toRestore();
+    }
+
+    @Benchmark
+    public String bootScript() {
+        return BootScript.toRestore(compiled);
+    }
+}
@@ -0,0 +1,10 @@
+package org.ethack.orwall.benchmark;
+
+/**
+ * Benchmark inputs. A fixed seed keeps them the same from one run to another;
+ * rulesets come from Iptables.compile(), see MockedIptables.
+ */
+public class Ruleset {
+    public final static long SEED = 0x0a11L;
+    public final static int FIRST_UID = 10000;
+}
@@ -0,0 +1,74 @@
+package org.ethack.orwall.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sufficientlysecure.rootcommands.Shell;
+import org.sufficientlysecure.rootcommands.command.SimpleCommand;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shell token and marker protocol, one command per app, against a local sh standing in for su.
+ * Commands are no-ops: only the protocol round-trips are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ShellProtocolBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int apps;
+
+    private Shell shell;
+
+    @Setup
+    public void setUp() throws Exception {
+        shell = Shell.startShell();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        shell.close();
+    }
+
+    /**
+     * One command at a time, as Iptables.genericRule() does
+     */
+    @Benchmark
+    public int oneByOne() throws Exception {
+        int status = 0;
+        for (int i = 0; i < apps; i++) {
+            SimpleCommand command = new SimpleCommand("true");
+            shell.add(command).waitForFinish();
+            status |= command.getExitCode();
+        }
+        return status;
+    }
+
+    /**
+     * All commands queued, then wait for the last one
+     */
+    @Benchmark
+    public int pipelined() throws Exception {
+        SimpleCommand last = null;
+        for (int i = 0; i < apps; i++) {
+            last = new SimpleCommand("true");
+            shell.add(last);
+        }
+        last.waitForFinish();
+        return last.getExitCode();
+    }
+}
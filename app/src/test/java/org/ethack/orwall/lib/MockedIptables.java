@@ -0,0 +1,96 @@
+package org.ethack.orwall.lib;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anySetOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Iptables on a mocked Context, for rules to be compiled off-device: every preference holds
+ * its default value, Orbot is installed and iptables knows the comment match.
+ * Only compile() and friends may be called, anything else would need a root shell.
+ */
+public class MockedIptables {
+    public final static int ORBOT_UID = 10001;
+    public final static int ORWALL_UID = 10002;
+    public final static int FIRST_UID = 10100;
+
+    // preferences getters return the default value they are given
+    private final static Answer<Object> DEFAULT_VALUE = new Answer<Object>() {
+        @Override
+        public Object answer(InvocationOnMock invocation) {
+            return invocation.getArguments()[1];
+        }
+    };
+
+    public static Context context() {
+        SharedPreferences preferences = mock(SharedPreferences.class);
+        when(preferences.getBoolean(anyString(), anyBoolean())).thenAnswer(DEFAULT_VALUE);
+        when(preferences.getString(anyString(), anyString())).thenAnswer(DEFAULT_VALUE);
+        when(preferences.getStringSet(anyString(), anySetOf(String.class))).thenAnswer(DEFAULT_VALUE);
+
+        ApplicationInfo info = new ApplicationInfo();
+        info.uid = ORWALL_UID;
+
+        Context context = mock(Context.class);
+        when(context.getSharedPreferences(anyString(), anyInt())).thenReturn(preferences);
+        when(context.getApplicationInfo()).thenReturn(info);
+        return context;
+    }
+
+    /**
+     * @return Iptables instance, not probing anything through a shell
+     */
+    public static Iptables create() {
+        return new Iptables(context()) {
+            @Override
+            public boolean getSupportComment() {
+                return true;
+            }
+
+            @Override
+            public boolean getSupportWait() {
+                return true;
+            }
+
+            @Override
+            public int getOrbotUID() {
+                return ORBOT_UID;
+            }
+        };
+    }
+
+    /**
+     * App rules, as NatRules would give them: mostly Tor, some bypassing it, a few allowed
+     * on localhost or LAN. The same seed gives the same rules.
+     *
+     * @param count number of apps
+     * @param seed  random seed
+     * @return app rules
+     */
+    public static List<AppRule> apps(int count, long seed) {
+        Random random = new Random(seed);
+        List<AppRule> rules = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int kind = random.nextInt(10);
+            String onionType = (kind < 7 ? Constants.DB_ONION_TYPE_TOR
+                    : (kind < 8 ? Constants.DB_ONION_TYPE_BYPASS : Constants.DB_ONION_TYPE_NONE));
+            rules.add(new AppRule(true, "org.example.app" + i, (long) (FIRST_UID + i), onionType,
+                    random.nextInt(10) == 0, random.nextInt(10) == 0));
+        }
+        return rules;
+    }
+}
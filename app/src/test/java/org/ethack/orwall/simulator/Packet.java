@@ -0,0 +1,64 @@
+package org.ethack.orwall.simulator;
+
+/**
+ * Synthetic packet, as seen by netfilter on its way through the OUTPUT or INPUT hook.
+ */
+public class Packet {
+    public final static String NEW = "NEW";
+    public final static String ESTABLISHED = "ESTABLISHED";
+    public final static String RELATED = "RELATED";
+
+    public final String hook;
+    public final int uid;
+    public final String proto;
+    public final String dst;
+    public final int dport;
+    public final String ctstate;
+
+    /**
+     * @param hook    OUTPUT or INPUT
+     * @param uid     owner UID, outgoing packets only
+     * @param proto   tcp or udp
+     * @param dst     destination IPv4 address
+     * @param dport   destination port
+     * @param ctstate conntrack state: NEW, ESTABLISHED or RELATED
+     */
+    public Packet(String hook, int uid, String proto, String dst, int dport, String ctstate) {
+        this.hook = hook;
+        this.uid = uid;
+        this.proto = proto;
+        this.dst = dst;
+        this.dport = dport;
+        this.ctstate = ctstate;
+    }
+
+    /**
+     * New outgoing connection
+     */
+    public static Packet output(int uid, String proto, String dst, int dport) {
+        return new Packet("OUTPUT", uid, proto, dst, dport, NEW);
+    }
+
+    /**
+     * Outgoing packet of a connection conntrack already knows
+     */
+    public static Packet established(int uid, String proto, String dst, int dport) {
+        return new Packet("OUTPUT", uid, proto, dst, dport, ESTABLISHED);
+    }
+
+    /**
+     * @return interface the packet goes through: loopback for 127.0.0.0/8
+     */
+    public String getInterface() {
+        return (dst.startsWith("127.") ? "lo" : "wlan0");
+    }
+
+    public boolean isLoopback() {
+        return dst.startsWith("127.");
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s uid=%d %s %s:%d %s", hook, uid, proto, dst, dport, ctstate);
+    }
+}
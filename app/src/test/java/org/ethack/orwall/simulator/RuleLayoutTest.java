@@ -0,0 +1,124 @@
+package org.ethack.orwall.simulator;
+
+import org.ethack.orwall.lib.AppRule;
+import org.ethack.orwall.lib.Constants;
+import org.ethack.orwall.lib.MockedIptables;
+import org.ethack.orwall.lib.RuleOptimizer;
+import org.ethack.orwall.lib.RuleOrderOptimizer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Per-packet traversal cost of rule layouts: as compiled, once optimized, and once reordered
+ * on counters. Layouts must give the same verdicts, and only cost less.
+ */
+public class RuleLayoutTest {
+    private final static long SEED = 0x0a11L;
+    private final static int APPS = 100;
+    // the last apps get most of the traffic: the worst case for compile() order
+    private final static int HOT_APPS = 10;
+    private final static int HOT_PACKETS = 20;
+
+    private final static String[] REORDERED_CHAINS = {"-A ow_OUTPUT ", "-t nat -A ow_OUTPUT "};
+    private final static Pattern UID_OWNER = Pattern.compile("--uid-owner (\\d+)");
+    private final static Pattern COUNTERS = Pattern.compile("^\\[\\d+:\\d+\\] ");
+
+    /**
+     * New connections of every app having a rule, hot apps more often
+     */
+    private static List<Packet> traffic(List<AppRule> apps) {
+        List<Packet> packets = new ArrayList<>();
+        for (int i = 0; i < apps.size(); i++) {
+            AppRule app = apps.get(i);
+            if (Constants.DB_ONION_TYPE_NONE.equals(app.getOnionType())) continue;
+            int count = (i >= apps.size() - HOT_APPS ? HOT_PACKETS : 1);
+            for (int j = 0; j < count; j++) {
+                packets.add(Packet.output(app.getAppUID().intValue(), "tcp", "93.184.216.34", 443));
+            }
+        }
+        return packets;
+    }
+
+    /**
+     * Reorder ow_OUTPUT as RuleOrderOptimizer would, with counters coming from some traffic
+     */
+    private static List<String> reordered(List<String> rules, List<Packet> traffic) {
+        Map<String, Integer> hits = new HashMap<>();
+        for (Packet packet : traffic) {
+            String uid = String.valueOf(packet.uid);
+            hits.put(uid, (hits.containsKey(uid) ? hits.get(uid) : 0) + 1);
+        }
+
+        List<String> result = new ArrayList<>(rules);
+        for (String prefix : REORDERED_CHAINS) {
+            List<Integer> positions = new ArrayList<>();
+            List<String> counted = new ArrayList<>();
+            for (int i = 0; i < rules.size(); i++) {
+                String rule = rules.get(i);
+                if (!rule.startsWith(prefix)) continue;
+                Matcher matcher = UID_OWNER.matcher(rule);
+                Integer packets = (matcher.find() ? hits.get(matcher.group(1)) : null);
+                positions.add(i);
+                // as iptables-save -c shows it
+                counted.add(String.format(Locale.US, "[%d:0] -A ow_OUTPUT %s", (packets == null ? 0 : packets),
+                        rule.substring(prefix.length())));
+            }
+            List<String> moved = RuleOrderOptimizer.reorder(counted);
+            for (int i = 0; i < positions.size(); i++) {
+                String rule = COUNTERS.matcher(moved.get(i)).replaceFirst("");
+                result.set(positions.get(i), prefix + rule.substring("-A ow_OUTPUT ".length()));
+            }
+        }
+        return result;
+    }
+
+    private static int traversed(RulesetSimulator simulator, List<Packet> traffic) {
+        int total = 0;
+        for (Packet packet : traffic) {
+            total += simulator.evaluate(packet).traversed;
+        }
+        return total;
+    }
+
+    @Test
+    public void optimizedLayoutsKeepVerdictsAndCostLess() {
+        List<AppRule> apps = MockedIptables.apps(APPS, SEED);
+        List<Packet> traffic = traffic(apps);
+
+        List<String> compiled = MockedIptables.create().compile(apps);
+        List<String> optimized = RuleOptimizer.optimize(compiled);
+        List<String> reordered = reordered(optimized, traffic);
+
+        RulesetSimulator compiledSimulator = new RulesetSimulator(compiled);
+        RulesetSimulator optimizedSimulator = new RulesetSimulator(optimized);
+        RulesetSimulator reorderedSimulator = new RulesetSimulator(reordered);
+
+        for (Packet packet : traffic) {
+            Verdict expected = compiledSimulator.evaluate(packet);
+            for (RulesetSimulator simulator : new RulesetSimulator[]{optimizedSimulator, reorderedSimulator}) {
+                Verdict verdict = simulator.evaluate(packet);
+                assertEquals(packet.toString(), expected.target, verdict.target);
+                assertEquals(packet.toString(), expected.nat, verdict.nat);
+            }
+        }
+
+        int compiledCost = traversed(compiledSimulator, traffic);
+        int optimizedCost = traversed(optimizedSimulator, traffic);
+        int reorderedCost = traversed(reorderedSimulator, traffic);
+        String costs = String.format(Locale.US, "rules traversed per %d packets: compiled %d, optimized %d, reordered %d",
+                traffic.size(), compiledCost, optimizedCost, reorderedCost);
+        assertTrue(costs, optimizedCost <= compiledCost);
+        // hot apps move up, right below the fast path
+        assertTrue(costs, reorderedCost < optimizedCost);
+    }
+}
@@ -0,0 +1,302 @@
+package org.ethack.orwall.simulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-JVM netfilter stand-in for orWall rulesets: loads rules as passed to iptables
+ * (filter and nat tables), and tells what happens to synthetic packets.
+ *
+ * Only what orWall uses is modelled: owner, protocol, addresses, interfaces, ports,
+ * multiport, conntrack state, TCP SYN, and the ACCEPT, DROP, REJECT, RETURN and REDIRECT
+ * targets. Rate limits always match; gid-owner never matches.
+ */
+public class RulesetSimulator {
+    private final static Pattern COMMAND = Pattern.compile("^(-t (\\S+) )?-([A-Z]) (\\S+)(.*)$");
+    private final static Pattern TOKEN = Pattern.compile("\"[^\"]*\"|\\S+");
+    private final static Set<String> TERMINAL = new HashSet<>(Arrays.asList("ACCEPT", "DROP", "REJECT"));
+    private final static int MAX_DEPTH = 32;
+
+    private final Map<String, Map<String, List<Rule>>> tables = new HashMap<>();
+    private final Map<String, String> policies = new HashMap<>();
+
+    /**
+     * One parsed rule: a list of matches and a target
+     */
+    private static class Rule {
+        final String text;
+        final List<Match> matches = new ArrayList<>();
+        String target = null;
+        int toPort = -1;
+
+        Rule(String text) {
+            this.text = text;
+        }
+    }
+
+    private static class Match {
+        final String option;
+        final String value;
+        final boolean negated;
+
+        Match(String option, String value, boolean negated) {
+            this.option = option;
+            this.value = value;
+            this.negated = negated;
+        }
+    }
+
+    /**
+     * @param rules rules, as passed to iptables, in order
+     */
+    public RulesetSimulator(List<String> rules) {
+        for (String table : new String[]{"filter", "nat"}) {
+            tables.put(table, new HashMap<String, List<Rule>>());
+            for (String builtin : new String[]{"INPUT", "OUTPUT", "FORWARD"}) {
+                tables.get(table).put(builtin, new ArrayList<Rule>());
+                policies.put(table + " " + builtin, "ACCEPT");
+            }
+        }
+        for (String rule : rules) {
+            load(rule);
+        }
+    }
+
+    private List<Rule> chain(String table, String name) {
+        if (!tables.containsKey(table)) tables.put(table, new HashMap<String, List<Rule>>());
+        return tables.get(table).get(name);
+    }
+
+    private void load(String line) {
+        Matcher matcher = COMMAND.matcher(line);
+        if (!matcher.matches()) throw new IllegalArgumentException("Unsupported rule: " + line);
+        String table = (matcher.group(2) == null ? "filter" : matcher.group(2));
+        String command = matcher.group(3);
+        String name = matcher.group(4);
+        String spec = matcher.group(5).trim();
+        List<Rule> rules = chain(table, name);
+
+        switch (command) {
+            case "N":
+                tables.get(table).put(name, new ArrayList<Rule>());
+                break;
+            case "P":
+                policies.put(table + " " + name, spec);
+                break;
+            case "F":
+                if (rules != null) rules.clear();
+                break;
+            case "X":
+                tables.get(table).remove(name);
+                break;
+            case "E":
+                tables.get(table).put(spec, tables.get(table).remove(name));
+                break;
+            case "A":
+                rules.add(parse(spec));
+                break;
+            case "I":
+            case "R":
+                int position = 1;
+                String[] parts = spec.split(" ", 2);
+                if (parts[0].matches("[0-9]+")) {
+                    position = Integer.valueOf(parts[0]);
+                    spec = (parts.length > 1 ? parts[1] : "");
+                }
+                if (command.equals("I")) {
+                    rules.add(position - 1, parse(spec));
+                } else {
+                    rules.set(position - 1, parse(spec));
+                }
+                break;
+            case "D":
+                // boot lock chains may not exist here
+                if (rules == null) break;
+                for (int i = 0; i < rules.size(); i++) {
+                    if (rules.get(i).text.equals(spec)) {
+                        rules.remove(i);
+                        break;
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported command: " + line);
+        }
+    }
+
+    private static Rule parse(String spec) {
+        Rule rule = new Rule(spec);
+        List<String> tokens = new ArrayList<>();
+        Matcher token = TOKEN.matcher(spec);
+        while (token.find()) tokens.add(token.group());
+
+        boolean negated = false;
+        for (int i = 0; i < tokens.size(); i++) {
+            String option = tokens.get(i);
+            if (option.equals("!")) {
+                negated = true;
+                continue;
+            }
+            String value = (i + 1 < tokens.size() ? tokens.get(i + 1) : null);
+            switch (option) {
+                case "-j":
+                    rule.target = value;
+                    i++;
+                    break;
+                case "--to-ports":
+                    rule.toPort = Integer.valueOf(value);
+                    i++;
+                    break;
+                case "-m":
+                case "--comment":
+                case "--reject-with":
+                case "--limit":
+                case "--limit-burst":
+                    i++;
+                    break;
+                case "--tcp-flags":
+                    // mask, then flags set
+                    rule.matches.add(new Match(option, tokens.get(i + 2), negated));
+                    i += 2;
+                    break;
+                default:
+                    rule.matches.add(new Match(option, value, negated));
+                    i++;
+            }
+            negated = false;
+        }
+        return rule;
+    }
+
+    private static long toAddress(String address) {
+        String[] bytes = address.split("\\.");
+        long result = 0;
+        for (String b : bytes) {
+            result = (result << 8) | Integer.valueOf(b);
+        }
+        return result;
+    }
+
+    private static boolean inNetwork(String address, String network) {
+        String[] parts = network.split("/");
+        int prefix = (parts.length > 1 ? Integer.valueOf(parts[1]) : 32);
+        long mask = (prefix == 0 ? 0 : (0xFFFFFFFFL << (32 - prefix)) & 0xFFFFFFFFL);
+        return (toAddress(address) & mask) == (toAddress(parts[0]) & mask);
+    }
+
+    private static boolean inPorts(int port, String list) {
+        for (String p : list.split(",")) {
+            if (Integer.valueOf(p) == port) return true;
+        }
+        return false;
+    }
+
+    private static boolean matches(Match match, Packet packet, boolean output) {
+        boolean result;
+        switch (match.option) {
+            case "--uid-owner":
+                result = output && Integer.valueOf(match.value) == packet.uid;
+                break;
+            case "--gid-owner":
+                result = false;
+                break;
+            case "-p":
+                result = match.value.equals(packet.proto);
+                break;
+            case "-d":
+                result = inNetwork(packet.dst, match.value);
+                break;
+            case "-s":
+                // incoming packets come from their destination, as seen from outgoing ones
+                result = !output && inNetwork(packet.dst, match.value);
+                break;
+            case "-o":
+                result = output && match.value.equals(packet.getInterface());
+                break;
+            case "-i":
+                result = !output && match.value.equals(packet.getInterface());
+                break;
+            case "--dport":
+            case "--dports":
+                result = inPorts(packet.dport, match.value);
+                break;
+            case "--sport":
+            case "--sports":
+                // synthetic packets use ephemeral source ports
+                result = false;
+                break;
+            case "--ctstate":
+                result = Arrays.asList(match.value.split(",")).contains(packet.ctstate);
+                break;
+            case "--tcp-flags":
+                // only connection openings carry SYN alone
+                result = packet.proto.equals("tcp") && packet.ctstate.equals(Packet.NEW) && match.value.equals("SYN");
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported match: " + match.option);
+        }
+        return result != match.negated;
+    }
+
+    /**
+     * Walk a chain. Returns the terminal rule hit, or null to fall through to the caller.
+     */
+    private Rule walk(String table, String name, Packet packet, boolean output, int[] traversed, int depth) {
+        if (depth > MAX_DEPTH) throw new IllegalStateException("Chain loop in " + table + " " + name);
+        List<Rule> rules = chain(table, name);
+        if (rules == null) throw new IllegalStateException("No such chain: " + table + " " + name);
+
+        for (Rule rule : rules) {
+            traversed[0]++;
+            boolean match = true;
+            for (Match m : rule.matches) {
+                if (!matches(m, packet, output)) {
+                    match = false;
+                    break;
+                }
+            }
+            if (!match || rule.target == null) continue;
+
+            if (rule.target.equals("RETURN")) return null;
+            if (TERMINAL.contains(rule.target) || rule.target.equals("REDIRECT")) return rule;
+            if (rule.target.equals("LOG")) continue;
+
+            Rule hit = walk(table, rule.target, packet, output, traversed, depth + 1);
+            if (hit != null) return hit;
+        }
+        return null;
+    }
+
+    /**
+     * @param packet synthetic packet
+     * @return what netfilter would do with it
+     */
+    public Verdict evaluate(Packet packet) {
+        boolean output = packet.hook.equals("OUTPUT");
+        int[] traversed = {0};
+        String nat = null;
+
+        // nat only sees the first packet of a connection
+        if (output && packet.ctstate.equals(Packet.NEW)) {
+            Rule hit = walk("nat", "OUTPUT", packet, true, traversed, 0);
+            if (hit != null && hit.target.equals("REDIRECT")) {
+                nat = "REDIRECT --to-ports " + hit.toPort;
+                packet = new Packet(packet.hook, packet.uid, packet.proto, "127.0.0.1",
+                        (hit.toPort > 0 ? hit.toPort : packet.dport), packet.ctstate);
+            }
+        }
+
+        Rule hit = walk("filter", packet.hook, packet, output, traversed, 0);
+        if (hit == null) {
+            return new Verdict(policies.get("filter " + packet.hook), nat, packet, null, traversed[0]);
+        }
+        return new Verdict(hit.target, nat, packet, hit.text, traversed[0]);
+    }
+}
@@ -0,0 +1,110 @@
+package org.ethack.orwall.simulator;
+
+import org.ethack.orwall.lib.MockedIptables;
+import org.ethack.orwall.lib.RuleOptimizer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tor-routed apps must never get a packet accepted outside of loopback.
+ * Rulesets come from Iptables.compile(), on a mocked Context.
+ */
+public class TorRoutingTest {
+    private final static long SEED = 0x0a11L;
+    private final static Pattern TOR_APP = Pattern.compile("--uid-owner (\\d+) -j ow_TOR_NAT");
+    private final static String FAST_PATH_SPEC = "-m conntrack --ctstate RELATED,ESTABLISHED -j ACCEPT";
+    private final static String FAST_PATH = "-A ow_OUTPUT " + FAST_PATH_SPEC;
+
+    private static Set<Integer> getTorUIDs(List<String> rules) {
+        Set<Integer> uids = new HashSet<>();
+        for (String rule : rules) {
+            Matcher matcher = TOR_APP.matcher(rule);
+            if (matcher.find()) uids.add(Integer.valueOf(matcher.group(1)));
+        }
+        return uids;
+    }
+
+    // public first octets only: no loopback, no private range
+    private final static int[] PUBLIC = {1, 8, 23, 37, 45, 62, 91, 104, 151, 185, 212};
+
+    private static String publicAddress(Random random) {
+        return String.format(Locale.US, "%d.%d.%d.%d", PUBLIC[random.nextInt(PUBLIC.length)],
+                random.nextInt(256), random.nextInt(256), 1 + random.nextInt(254));
+    }
+
+    private static void assertNoLeak(List<String> rules) {
+        RulesetSimulator simulator = new RulesetSimulator(rules);
+        Set<Integer> uids = getTorUIDs(rules);
+        assertFalse(uids.isEmpty());
+
+        Random random = new Random(SEED);
+        for (int uid : uids) {
+            for (int i = 0; i < 20; i++) {
+                String proto = (random.nextBoolean() ? "tcp" : "udp");
+                int port = (i == 0 ? 53 : 1 + random.nextInt(65535));
+                Packet packet = Packet.output(uid, proto, publicAddress(random), port);
+                Verdict verdict = simulator.evaluate(packet);
+                assertTrue(packet + " -> " + verdict, !verdict.isAccepted() || verdict.packet.isLoopback());
+            }
+        }
+    }
+
+    private static List<String> compiled(int apps) {
+        return MockedIptables.create().compile(MockedIptables.apps(apps, SEED));
+    }
+
+    @Test
+    public void torAppsStayOnLoopback() {
+        assertNoLeak(compiled(100));
+    }
+
+    @Test
+    public void torAppsStayOnLoopbackOnceOptimized() {
+        assertNoLeak(RuleOptimizer.optimize(compiled(100)));
+    }
+
+    /**
+     * Known flows are accepted by the fast path alone, before any per-app rule: the ruleset
+     * relies on conntrack only knowing flows per-app rules let through. Anything else
+     * (pause, browser grant) must flush conntrack once it's over, see Iptables.flushConntrack().
+     */
+    @Test
+    public void establishedTorFlowsOnlyPassThroughFastPath() {
+        List<String> rules = compiled(100);
+        List<String> withoutFastPath = new ArrayList<>();
+        for (String rule : rules) {
+            if (!rule.startsWith(FAST_PATH)) withoutFastPath.add(rule);
+        }
+        assertEquals(rules.size() - 1, withoutFastPath.size());
+
+        RulesetSimulator simulator = new RulesetSimulator(rules);
+        RulesetSimulator noFastPath = new RulesetSimulator(withoutFastPath);
+        Random random = new Random(SEED);
+        for (int uid : getTorUIDs(rules)) {
+            Packet packet = Packet.established(uid, "tcp", publicAddress(random), 443);
+
+            Verdict verdict = simulator.evaluate(packet);
+            assertTrue(packet + " -> " + verdict, verdict.isAccepted());
+            assertNotNull(verdict.rule);
+            assertTrue(packet + " -> " + verdict, verdict.rule.startsWith(FAST_PATH_SPEC));
+            // OUTPUT jump, then the fast path: no per-app rule is even looked at
+            assertEquals(2, verdict.traversed);
+
+            verdict = noFastPath.evaluate(packet);
+            assertFalse(packet + " -> " + verdict, verdict.isAccepted());
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.ethack.orwall.simulator;
+
+/**
+ * What happened to a packet: final target, NAT applied on the way, and traversal cost.
+ */
+public class Verdict {
+    public final String target;
+    public final String nat;
+    public final Packet packet;
+    public final String rule;
+    public final int traversed;
+
+    /**
+     * @param target    ACCEPT, DROP or REJECT
+     * @param nat       NAT target applied, e.g. "REDIRECT --to-ports 9040", null if none
+     * @param packet    packet after NAT
+     * @param rule      rule deciding the verdict, null for a chain policy
+     * @param traversed number of rules evaluated, all tables included
+     */
+    Verdict(String target, String nat, Packet packet, String rule, int traversed) {
+        this.target = target;
+        this.nat = nat;
+        this.packet = packet;
+        this.rule = rule;
+        this.traversed = traversed;
+    }
+
+    public boolean isAccepted() {
+        return "ACCEPT".equals(target);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s%s after %d rules (%s)", target, (nat == null ? "" : " via " + nat),
+                traversed, (rule == null ? "policy" : rule));
+    }
+}